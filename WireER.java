@@ -4,18 +4,63 @@ import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.graph.Graph;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Erdős–Rényi G(n, p) random graph.
+ * <p>
+ * Parameter <code>mode</code> selects the generator:
+ * <ul>
+ * <li><code>exact</code> (default): one draw per node pair, the original
+ * O(n<sup>2</sup>) loop, kept for bit-for-bit comparisons with earlier runs</li>
+ * <li><code>skip</code>: geometric skipping over the pairs (Batagelj and
+ * Brandes), one draw per edge, O(n + m)</li>
+ * <li><code>parallel</code>: <code>skip</code> on <code>chunks</code> row ranges
+ * of about equal pair count, generated on <code>threads</code> threads. Each
+ * range has its own generator seeded from one draw of the simulation random,
+ * so the graph only depends on <code>random.seed</code> and
+ * <code>chunks</code>, not on the number of threads.</li>
+ * </ul>
+ */
 public class WireER extends WireGraph {
 
     private double p;
+    private final String mode;
+    private final int chunks;
+    private final int threads;
 
     public WireER(String prefix) {
         super(prefix);
         p = Configuration.getDouble(prefix + ".p");
+        mode = Configuration.getString(prefix + ".mode", "exact");
+        chunks = Math.max(1, Configuration.getInt(prefix + ".chunks", 64));
+        threads = Math.max(1, Configuration.getInt(prefix + ".threads", Runtime.getRuntime().availableProcessors()));
+        if (!mode.equals("exact") && !mode.equals("skip") && !mode.equals("parallel")) {
+            throw new IllegalArgumentException("Unknown mode " + mode + " in " + prefix);
+        }
     }
 
     public void wire(Graph g) {
+        switch (mode) {
+            case "skip":
+                wireSkip(g);
+                break;
+            case "parallel":
+                wireParallel(g);
+                break;
+            default:
+                wireExact(g);
+        }
+    }
+
+    private void wireExact(Graph g) {
         int n = g.size();
         Random r = CommonState.r;
         for (int i = 0; i < n; i++) {
@@ -27,4 +72,84 @@ public class WireER extends WireGraph {
             }
         }
     }
+
+    private void wireSkip(Graph g) {
+        Edges edges = generate(CommonState.r, 0, g.size());
+        edges.addTo(g);
+    }
+
+    private void wireParallel(Graph g) {
+        int n = g.size();
+        long seed = CommonState.r.nextLong();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks));
+        try {
+            List<Future<Edges>> parts = new ArrayList<>(chunks);
+            for (int k = 0; k < chunks; k++) {
+                // row v has v pairs, so equal pair counts split n at sqrt(k / chunks)
+                int from = (int) Math.round(n * Math.sqrt((double) k / chunks));
+                int to = (int) Math.round(n * Math.sqrt((double) (k + 1) / chunks));
+                Random r = new Random(seed + (k + 1) * 0x9E3779B97F4A7C15L);
+                parts.add(pool.submit(() -> generate(r, from, to)));
+            }
+            // Graph implementations are not thread safe, add the edges here in range order
+            for (Future<Edges> part : parts) {
+                part.get().addTo(g);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while wiring", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error wiring graph", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Edges (v, w), w &lt; v, of rows <code>from &lt;= v &lt; to</code>. The
+     * gap to the next edge in the pair sequence is geometric with parameter
+     * <code>p</code>, so it is drawn directly instead of testing every pair.
+     */
+    private Edges generate(Random r, int from, int to) {
+        Edges edges = new Edges((int) Math.min(Integer.MAX_VALUE / 2,
+                p * ((long) to * (to - 1) - (long) from * (from - 1)) / 2 * 1.1 + 16));
+        if (p <= 0 || from >= to) return edges;
+        double logq = Math.log(1 - p);
+        long limit = (long) to * to; // larger than any skip that stays in range
+        int v = from;
+        long w = -1;
+        while (v < to) {
+            double skip = p >= 1 ? 0 : Math.floor(Math.log(1 - r.nextDouble()) / logq);
+            w += 1 + (long) Math.min(skip, limit);
+            while (w >= v && v < to) {
+                w -= v;
+                v++;
+            }
+            if (v < to) edges.add(v, (int) w);
+        }
+        return edges;
+    }
+
+    private static final class Edges {
+
+        private int[] ends;
+        private int size;
+
+        Edges(int capacity) {
+            ends = new int[2 * Math.max(1, capacity)];
+        }
+
+        void add(int v, int w) {
+            if (size == ends.length) ends = Arrays.copyOf(ends, 2 * ends.length);
+            ends[size++] = v;
+            ends[size++] = w;
+        }
+
+        void addTo(Graph g) {
+            for (int k = 0; k < size; k += 2) {
+                g.setEdge(ends[k], ends[k + 1]);
+                g.setEdge(ends[k + 1], ends[k]); // undirected edge
+            }
+        }
+    }
 }
@@ -0,0 +1,178 @@
+package self_stabilizing_load_balancing;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH result (<code>-rf csv</code>) with a stored baseline and
+ * exits with status 1 if a score got worse by more than the tolerance plus
+ * the error of both measurements.
+ * <pre>
+ * java -cp target/benchmarks.jar self_stabilizing_load_balancing.BaselineCheck \
+ *     baselines/SelfEDBenchmark.csv result.csv [tolerance, default 0.10]
+ * </pre>
+ * Rows are matched by benchmark, mode and parameters. Scores in
+ * <code>ops/time</code> must not drop, scores in <code>.../op</code> (time
+ * per operation, latency percentiles up to p0.99 and the bytes allocated
+ * per operation of <code>-prof gc</code>) must not rise; other rows are not
+ * compared. Rows missing from either file are listed but do not fail.
+ * <p>
+ * If the baseline does not exist yet, the result is copied there and the
+ * check passes; later runs on the machine are compared with it.
+ */
+public class BaselineCheck {
+
+    /**
+     * Allocation below one object header is noise of the profiler.
+     */
+    private static final double ALLOC_SLACK = 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baseline csv> <result csv> [tolerance]");
+            System.exit(2);
+        }
+        Path baselineFile = Paths.get(args[0]);
+        if (!Files.exists(baselineFile)) {
+            read(args[1]); // only record a JMH result
+            if (baselineFile.getParent() != null) Files.createDirectories(baselineFile.getParent());
+            Files.copy(Paths.get(args[1]), baselineFile);
+            System.out.println("[Baseline] no baseline yet, recorded " + args[1] + " as " + baselineFile);
+            return;
+        }
+        Map<String, Row> baseline = read(args[0]);
+        Map<String, Row> result = read(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+        int regressions = 0;
+        System.out.printf("%-80s %14s %14s %8s %s%n", "benchmark", "baseline", "result", "change", "");
+        for (Map.Entry<String, Row> e : result.entrySet()) {
+            Row now = e.getValue();
+            Row base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.printf("%-80s %14s %14.3f %8s new%n", e.getKey(), "", now.score, "");
+                continue;
+            }
+            int direction = direction(now);
+            if (direction == 0 || !now.unit.equals(base.unit)) continue;
+            // positive when worse
+            double worse = direction * (base.score - now.score);
+            double slack = tolerance * Math.abs(base.score) + base.error + now.error;
+            if (now.unit.equals("B/op")) slack = Math.max(slack, ALLOC_SLACK);
+            boolean regressed = worse > slack;
+            if (regressed) regressions++;
+            double change = base.score == 0 ? 0 : 100 * (now.score - base.score) / base.score;
+            System.out.printf("%-80s %14.3f %14.3f %+7.1f%% %s%n", e.getKey(), base.score, now.score, change,
+                    regressed ? "REGRESSION" : "ok");
+        }
+        for (String key : baseline.keySet()) {
+            if (!result.containsKey(key)) System.out.printf("%-80s not measured%n", key);
+        }
+        System.out.printf("%d regression(s) at tolerance %.0f%%%n", regressions, 100 * tolerance);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * 1 if higher is better, -1 if lower is better, 0 if not compared.
+     */
+    private static int direction(Row row) {
+        if (row.unit.startsWith("ops/")) return 1;
+        if (!row.unit.endsWith("/op")) return 0;
+        int colon = row.benchmark.lastIndexOf(':');
+        if (colon >= 0) {
+            String metric = row.benchmark.substring(colon + 1);
+            // the tail of the latency distribution is too noisy to gate on
+            if (metric.startsWith("p") && Double.parseDouble(metric.substring(1)) > 0.99) return 0;
+        }
+        return -1;
+    }
+
+    private static final class Row {
+        String benchmark;
+        double score;
+        double error;
+        String unit;
+    }
+
+    private static Map<String, Row> read(String filename) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(filename));
+        Map<String, Row> rows = new LinkedHashMap<>();
+        if (lines.isEmpty()) return rows;
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        int error = -1;
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).startsWith("Score Error")) error = i;
+        }
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+            throw new IOException(filename + " is not a JMH CSV result");
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) continue;
+            List<String> fields = split(line);
+            String name = fields.get(benchmark);
+            int metric = name.indexOf(':');
+            // without the package, e.g. SelfEDBenchmark.cycle:p0.99
+            int dot = name.lastIndexOf('.', metric < 0 ? name.length() : metric);
+            dot = name.lastIndexOf('.', dot - 1);
+            StringBuilder key = new StringBuilder(name.substring(dot + 1)).append(" ").append(fields.get(mode));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < fields.size() && !fields.get(i).isEmpty()) {
+                    key.append(" ").append(header.get(i).substring(7)).append("=").append(fields.get(i));
+                }
+            }
+            Row row = new Row();
+            row.benchmark = name;
+            row.score = Double.parseDouble(fields.get(score));
+            row.error = error < 0 ? 0 : parseError(fields.get(error));
+            row.unit = fields.get(unit);
+            rows.put(key.toString(), row);
+        }
+        return rows;
+    }
+
+    private static double parseError(String s) {
+        double e = s.isEmpty() ? Double.NaN : Double.parseDouble(s);
+        return Double.isNaN(e) ? 0 : e;
+    }
+
+    /**
+     * Fields of a CSV line, unquoted.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,67 @@
+package self_stabilizing_load_balancing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full pass of {@link LoadMetrics} over loads in an array and a random
+ * {@link CsrGraph}, as {@link CsrSimulator} observes, with the scalar loop
+ * and with <code>VectorLoadPass</code>. The vector runs need a build with
+ * <code>-Pvector</code> and <code>-jvmArgsPrepend
+ * --add-modules=jdk.incubator.vector</code>; otherwise they fail in setup.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Thread)
+public class LoadMetricsBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int size;
+
+    /** Mean number of links per node. */
+    @Param({"10"})
+    public int degree;
+
+    @Param({"false", "true"})
+    public boolean vector;
+
+    private double[] values;
+    private CsrGraph graph;
+    private LoadMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random r = new Random(1234567890L);
+        int[] offset = new int[size + 1];
+        for (int i = 0; i < size; i++) offset[i + 1] = offset[i] + r.nextInt(2 * degree + 1);
+        int[] neighbor = new int[offset[size]];
+        for (int k = 0; k < neighbor.length; k++) neighbor[k] = r.nextInt(size);
+        graph = new CsrGraph(new long[size], offset, neighbor);
+        values = new double[size];
+        for (int i = 0; i < size; i++) values[i] = r.nextInt(2000);
+        metrics = new LoadMetrics(0, false, 1, vector);
+        if (vector && !metrics.vectorized()) throw new IllegalStateException("the Vector API is not available");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double observe() {
+        metrics.observe(values, graph);
+        return metrics.mse;
+    }
+}
@@ -0,0 +1,43 @@
+package self_stabilizing_load_balancing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One observation of the network of a {@link Simulation}, written to the
+ * null device.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class MSEObserverBenchmark {
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean execute(Observer o) {
+        return o.observer.execute();
+    }
+
+    @State(Scope.Thread)
+    public static class Observer {
+
+        MSEObserver observer;
+
+        @Setup(Level.Trial)
+        public void setUp(Simulation sim) {
+            observer = new MSEObserver("control.1");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package self_stabilizing_load_balancing;
+
+import peersim.core.Node;
+import peersim.transport.Transport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Transport of the benchmarks: messages wait in one queue, shared by all
+ * nodes, until {@link #deliver} hands them to the receivers, so that a round
+ * runs without the event queue of the simulator.
+ */
+public class QueueTransport implements Transport {
+
+    private Node[] dest = new Node[1024];
+    private Object[] msg = new Object[1024];
+    private int size;
+    /**
+     * Drop messages instead of queueing them, when a benchmark measures a
+     * single step. Dropped proposals and Acks go back to their pool, as if
+     * delivered, so that the pool is as full as in a run.
+     */
+    boolean discard;
+
+    public QueueTransport(String prefix) {
+    }
+
+    public void send(Node src, Node dest, Object msg, int pid) {
+        if (discard) {
+            SelfED.recycle(msg);
+            return;
+        }
+        if (size == this.dest.length) {
+            this.dest = Arrays.copyOf(this.dest, 2 * size);
+            this.msg = Arrays.copyOf(this.msg, 2 * size);
+        }
+        this.dest[size] = dest;
+        this.msg[size++] = msg;
+    }
+
+    public long getLatency(Node src, Node dest) {
+        return 0;
+    }
+
+    /**
+     * Delivers the queued messages in order, and the messages their delivery
+     * sends, until the queue is empty.
+     */
+    void deliver(int pid) {
+        record(pid, null, null);
+    }
+
+    /**
+     * Same as {@link #deliver}, also adding the receivers and copies of the
+     * messages to the lists if they are not null. The copies are taken
+     * before delivery, which recycles the messages, and are not pooled.
+     */
+    void record(int pid, List<Node> nodes, List<Object> messages) {
+        for (int k = 0; k < size; k++) {
+            Node node = dest[k];
+            if (nodes != null) {
+                nodes.add(node);
+                messages.add(SelfED.copy(msg[k], false));
+            }
+            ((SelfED) node.getProtocol(pid)).processEvent(node, pid, msg[k]);
+            dest[k] = null;
+            msg[k] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * One instance serves all nodes.
+     */
+    public Object clone() {
+        return this;
+    }
+}
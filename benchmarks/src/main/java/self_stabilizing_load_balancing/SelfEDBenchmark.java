@@ -0,0 +1,199 @@
+package self_stabilizing_load_balancing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import peersim.config.FastConfig;
+import peersim.core.Linkable;
+import peersim.core.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of {@link SelfED} on a {@link Simulation}: a whole round, with
+ * its latency percentiles, and nextCycle, RRProposal and processEvent one
+ * call at a time, cycling through the nodes (or messages) of the network.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SelfEDBenchmark {
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void cycle(Simulation sim) {
+        sim.round();
+    }
+
+    /**
+     * Messages are dropped, so the loads stay those after the warm-up
+     * rounds.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void nextCycle(Simulation sim, Nodes nodes) {
+        Node node = sim.nodes[nodes.next()];
+        ((SelfED) node.getProtocol(sim.pid)).nextCycle(node, sim.pid);
+    }
+
+    /**
+     * The tentative loads of PV_less are restored before each call, as
+     * RRProposal raises them.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<Node, Integer> rrProposal(Simulation sim, Proposals p) {
+        int k = p.next();
+        List<Node> pvLess = p.pvLess[k];
+        for (int i = 0; i < pvLess.size(); i++) {
+            ((SelfED) pvLess.get(i).getProtocol(sim.pid)).tLoad = p.tLoad[k][i];
+        }
+        return p.sender[k].RRProposal(p.loadToTransfer[k], pvLess, p.tentativeLoad[k], sim.pid);
+    }
+
+    /**
+     * Replays the proposals and Acks of one round, each time in a message
+     * taken from the pool, as sent in a run; processEvent recycles it. The
+     * messages sent in answer are dropped.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void processEvent(Simulation sim, Messages m) {
+        int k = m.next();
+        Node node = m.node[k];
+        ((SelfED) node.getProtocol(sim.pid)).processEvent(node, sim.pid, SelfED.copy(m.message[k], true));
+    }
+
+    @State(Scope.Thread)
+    public static class Nodes {
+
+        private int next;
+        private int n;
+
+        @Setup(Level.Trial)
+        public void setUp(Simulation sim) {
+            sim.transport.discard = true;
+            n = sim.nodes.length;
+        }
+
+        int next() {
+            int i = next;
+            next = i + 1 == n ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    /**
+     * The arguments nextCycle would pass to RRProposal, for every node that
+     * has a neighbor with a lower load.
+     */
+    @State(Scope.Thread)
+    public static class Proposals {
+
+        SelfED[] sender;
+        List<Node>[] pvLess;
+        int[] loadToTransfer;
+        double[] tentativeLoad;
+        double[][] tLoad;
+        private int next;
+
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setUp(Simulation sim) {
+            int pid = sim.pid;
+            List<SelfED> senders = new ArrayList<>();
+            List<List<Node>> lists = new ArrayList<>();
+            List<Integer> loads = new ArrayList<>();
+            List<Double> tentatives = new ArrayList<>();
+            for (Node node : sim.nodes) {
+                SelfED p = (SelfED) node.getProtocol(pid);
+                Linkable linkable = (Linkable) node.getProtocol(FastConfig.getLinkable(pid));
+                double value = p.getValue();
+                double minLoad = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < linkable.degree(); i++) {
+                    minLoad = Math.min(minLoad, ((SelfED) linkable.getNeighbor(i).getProtocol(pid)).getValue());
+                }
+                if (!(minLoad < value)) continue;
+                int load = Math.max(0, (int) Math.ceil((value - minLoad) / 2));
+                double tentative = value - load;
+                List<Node> pv = new ArrayList<>();
+                for (int i = 0; i < linkable.degree(); i++) {
+                    Node q = linkable.getNeighbor(i);
+                    if (((SelfED) q.getProtocol(pid)).getValue() < tentative) pv.add(q);
+                }
+                senders.add(p);
+                lists.add(pv);
+                loads.add(load);
+                tentatives.add(tentative);
+            }
+            if (senders.isEmpty()) throw new IllegalStateException("No node has a neighbor with a lower load");
+            int n = senders.size();
+            sender = senders.toArray(new SelfED[0]);
+            pvLess = lists.toArray(new List[0]);
+            loadToTransfer = new int[n];
+            tentativeLoad = new double[n];
+            tLoad = new double[n][];
+            for (int k = 0; k < n; k++) {
+                loadToTransfer[k] = loads.get(k);
+                tentativeLoad[k] = tentatives.get(k);
+                tLoad[k] = new double[pvLess[k].size()];
+                for (int i = 0; i < tLoad[k].length; i++) {
+                    tLoad[k][i] = ((SelfED) pvLess[k].get(i).getProtocol(pid)).tLoad;
+                }
+            }
+        }
+
+        int next() {
+            int k = next;
+            next = k + 1 == sender.length ? 0 : k + 1;
+            return k;
+        }
+    }
+
+    /**
+     * The messages of the first round after the warm-up that has any, as
+     * copies outside the message pool.
+     */
+    @State(Scope.Thread)
+    public static class Messages {
+
+        Node[] node;
+        Object[] message;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Simulation sim) {
+            List<Node> nodes = new ArrayList<>();
+            List<Object> messages = new ArrayList<>();
+            for (int r = 0; r < 10 && messages.isEmpty(); r++) {
+                for (Node n : sim.nodes) ((SelfED) n.getProtocol(sim.pid)).nextCycle(n, sim.pid);
+                sim.transport.record(sim.pid, nodes, messages);
+            }
+            if (messages.isEmpty()) throw new IllegalStateException("No messages in 10 rounds");
+            node = nodes.toArray(new Node[0]);
+            message = messages.toArray();
+            sim.transport.discard = true;
+        }
+
+        int next() {
+            int k = next;
+            next = k + 1 == node.length ? 0 : k + 1;
+            return k;
+        }
+    }
+}
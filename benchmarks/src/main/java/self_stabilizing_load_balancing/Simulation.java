@@ -0,0 +1,129 @@
+package self_stabilizing_load_balancing;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import peersim.config.Configuration;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+import peersim.core.Node;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A network built from one of the configurations in
+ * <code>Configuration/</code>, resized to <code>size</code> nodes and
+ * initialized with the peak or the linear distribution. Messages go through
+ * a {@link QueueTransport}, so {@link #round} runs one synchronous round.
+ * <p>
+ * The configurations are read from the directory in the system property
+ * <code>config.dir</code>, by default <code>../Configuration</code>.
+ */
+@State(Scope.Benchmark)
+public class Simulation {
+
+    /**
+     * Rounds run before measuring, so that the loads have started to spread.
+     */
+    static final int WARMUP_ROUNDS = 3;
+    /**
+     * Largest complete graph: it has n(n-1) links.
+     */
+    static final int COMPLETE_MAX = 10000;
+
+    @Param({"complete", "ring", "star", "ws", "ba", "er"})
+    public String topology;
+
+    @Param({"200", "10000", "1000000"})
+    public int size;
+
+    @Param({"peak", "linear"})
+    public String distribution;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    int pid;
+    QueueTransport transport;
+    Node[] nodes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (topology.equals("complete") && size > COMPLETE_MAX) {
+            throw new IllegalArgumentException("The complete graph of " + size + " nodes has "
+                    + (long) size * (size - 1) + " links, use -p size=<" + COMPLETE_MAX + " or less>");
+        }
+        configure(topology, size,
+                "include.init=" + wiring(topology) + " " + (distribution.equals("peak") ? "peak" : "lin"),
+                "protocol.avg.compact=" + compact);
+        Network.reset();
+        for (String name : Configuration.getNames("init")) {
+            ((Control) Configuration.getInstance(name)).execute();
+        }
+        pid = Configuration.lookupPid("avg");
+        nodes = new Node[Network.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = Network.get(i);
+        transport = (QueueTransport) nodes[0].getProtocol(Configuration.lookupPid("tr"));
+        for (int r = 0; r < WARMUP_ROUNDS; r++) round();
+    }
+
+    /**
+     * Every node runs nextCycle, then all proposals and Acks are delivered.
+     */
+    void round() {
+        for (Node node : nodes) ((SelfED) node.getProtocol(pid)).nextCycle(node, pid);
+        transport.deliver(pid);
+    }
+
+    /**
+     * Loads the configuration of a topology with <code>size</code> nodes,
+     * messages sent through {@link QueueTransport} and the MSEObserver
+     * writing nowhere, then the overrides.
+     */
+    static void configure(String topology, int size, String... overrides) {
+        String dir = System.getProperty("config.dir", "../Configuration");
+        List<String> args = new ArrayList<>();
+        args.add(new File(dir, file(topology)).getPath());
+        args.add("SIZE=" + size);
+        args.add("protocol.tr=" + QueueTransport.class.getName());
+        args.add("control.1.console=false");
+        args.add("control.1.output_filename=" + (new File("/dev/null").exists() ? "/dev/null" : "NUL"));
+        if (topology.equals("er")) {
+            // keep the mean degree of the 200 node configuration
+            args.add("init.er.p=" + Math.min(0.25, 0.25 * 199 / (size - 1)));
+            args.add("init.er.mode=skip");
+        }
+        args.addAll(List.of(overrides));
+        Configuration.setConfig(new ParsedProperties(args.toArray(new String[0])));
+        CommonState.initializeRandom(Configuration.getLong("random.seed"));
+    }
+
+    private static String file(String topology) {
+        switch (topology) {
+            case "complete": return "config-testing_ss.txt";
+            case "ring": return "config-testing_ss_ring.txt";
+            case "star": return "config-testing_ss_star.txt";
+            case "ws": return "config-testing_ss_ws.txt";
+            case "ba": return "config-testing_ss_ba.txt";
+            case "er": return "config-testing_ss_random.txt";
+            default: throw new IllegalArgumentException("Unknown topology " + topology);
+        }
+    }
+
+    /**
+     * Name of the initializer that wires the topology in its configuration.
+     */
+    private static String wiring(String topology) {
+        switch (topology) {
+            case "complete": return "rndlink";
+            case "ring": return "ringlink";
+            default: return topology;
+        }
+    }
+}
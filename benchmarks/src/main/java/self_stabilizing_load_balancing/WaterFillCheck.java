@@ -0,0 +1,141 @@
+package self_stabilizing_load_balancing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares {@link WaterFill#allocate} with the unit-step RRProposal it
+ * replaced on random inputs.
+ * <pre>
+ * java -cp target/benchmarks.jar self_stabilizing_load_balancing.WaterFillCheck [rounds [seed]]
+ * </pre>
+ * {@link #rrProposal} is the original loop of SelfED, with receivers given
+ * by their position in PV_less and tentative loads in an array instead of
+ * on the protocols, and with counters of the put and merge calls. The
+ * reference that used to be in WaterFill wrapped the index at the top of
+ * the round-robin loop as well; that cannot make a difference: the
+ * round-robin runs only while <code>leftLoad &lt; transferPerNode *
+ * |TV_less|</code>, so it ends before any receiver has taken its
+ * <code>tentativeLoad - m</code> units, and no receiver is removed there.
+ */
+public class WaterFillCheck {
+
+    // of the last rrProposal call
+    private boolean put;
+    private int rrUnits; // merge calls
+    private int steps; // put and merge calls
+
+    private Map<Integer, Integer> rrProposal(int loadToTransfer, List<Integer> pvLess, double tentativeLoad,
+                                             double[] tLoad) {
+        put = false;
+        rrUnits = 0;
+        steps = 0;
+        Map<Integer, Integer> proposals = new HashMap<>();
+        // l36-l37: setting tvLess and leftLoad_to_transfer
+        List<Integer> tvLess = new ArrayList<>(pvLess);
+        int leftLoad = loadToTransfer;
+
+        // l38: while loop when  |TVless| > 0 ∧ LeftLoadToTransfer > 0
+        while (!tvLess.isEmpty() && leftLoad > 0) {
+            // l39: set m as max of tvless
+            int maxNode = Collections.max(tvLess, Comparator.comparingDouble(q -> tLoad[q]));
+            double m = tLoad[maxNode];
+
+            // set transferPerNode as tentativeLoad - m, the biggest load that every node can afford
+            int transferPerNode = (int) (tentativeLoad - m);
+            if (transferPerNode <= 0) break;
+
+            // l40: check can the node transfer to all nodes in tvless
+            if (transferPerNode * tvLess.size() <= leftLoad) {
+                // l41.a: proposal all load to tvless and update leftLoad
+                for (int q : tvLess) {
+                    proposals.put(q, transferPerNode);
+                    put = true;
+                    steps++;
+                    leftLoad -= transferPerNode;
+                }
+                // l41.b: remove the nodes that equals TentativeLoad from tvless
+                List<Integer> toRemove = new ArrayList<>();
+                for (int q : tvLess) {
+                    if (tLoad[q] == tentativeLoad) {
+                        toRemove.add(q);
+                    }
+                }
+                tvLess.removeAll(toRemove);
+            } else {
+                // l42-43: using Round-Robin for residual load
+                int currentIndex = 0;  // using index to control the cycle
+                while (leftLoad > 0 && !tvLess.isEmpty()) {
+                    int q = tvLess.get(currentIndex);
+                    double qLoad = tLoad[q];
+                    int maxTransfer = (int) (tentativeLoad - qLoad);
+                    if (maxTransfer <= 0) {
+                        tvLess.remove(currentIndex);
+                        continue;
+                    }
+                    // allocate 1 in each round and update the receiver node
+                    int transfer = Math.min(1, Math.min(maxTransfer, leftLoad));
+                    proposals.merge(q, transfer, Integer::sum);
+                    rrUnits++;
+                    steps++;
+                    leftLoad -= transfer;
+                    tLoad[q] += transfer;
+                    if (tLoad[q] >= tentativeLoad) {
+                        tvLess.remove(currentIndex);
+                    } else {
+                        currentIndex++;
+                    }
+                    // reset index if next round is needed
+                    if (currentIndex >= tvLess.size()) {
+                        currentIndex = 0;
+                    }
+                }
+            }
+        }
+        return proposals;
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random r = new Random(args.length > 1 ? Long.parseLong(args[1]) : 1234567890L);
+        WaterFill closed = new WaterFill();
+        WaterFillCheck reference = new WaterFillCheck();
+        for (int round = 0; round < rounds; round++) {
+            int n = r.nextInt(r.nextBoolean() ? 8 : 200);
+            int scale = 1 + r.nextInt(r.nextBoolean() ? 50 : 20000);
+            double tentativeLoad = scale + r.nextInt(scale);
+            int loadToTransfer = r.nextInt(2 * scale * Math.max(1, n) + 1);
+            boolean fractional = r.nextInt(4) == 0;
+            closed.ensure(n);
+            double[] tLoad = new double[n];
+            List<Integer> pvLess = new ArrayList<>();
+            for (int k = 0; k < n; k++) {
+                double load = r.nextInt((int) tentativeLoad);
+                if (fractional) load += r.nextInt(4) / 4.0;
+                closed.tLoad[k] = tLoad[k] = load;
+                pvLess.add(k);
+            }
+            closed.allocate(n, tentativeLoad, loadToTransfer);
+            Map<Integer, Integer> proposals = reference.rrProposal(loadToTransfer, pvLess, tentativeLoad, tLoad);
+            int[] amount = new int[n];
+            proposals.forEach((q, units) -> amount[q] = units);
+            if (!Arrays.equals(closed.amount, 0, n, amount, 0, n)
+                    || !Arrays.equals(closed.tLoad, 0, n, tLoad, 0, n)
+                    || closed.put != reference.put || closed.rrUnits != reference.rrUnits
+                    || closed.unitSteps != reference.steps) {
+                System.err.printf("Mismatch in round %d: n %d, tentative load %.2f, loadToTransfer %d%n",
+                        round, n, tentativeLoad, loadToTransfer);
+                System.err.println("water-fill:  " + Arrays.toString(Arrays.copyOf(closed.amount, n)));
+                System.err.println("round-robin: " + Arrays.toString(amount));
+                System.exit(1);
+            }
+        }
+        System.out.println(rounds + " random allocations identical");
+    }
+}
@@ -0,0 +1,63 @@
+package self_stabilizing_load_balancing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import peersim.dynamics.WireER;
+import peersim.graph.Graph;
+import peersim.graph.NeighbourListGraph;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wiring an ER graph of <code>size</code> nodes with the mean degree of the
+ * 200 node configuration, in each mode of {@link WireER}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Benchmark)
+public class WireERBenchmark {
+
+    /**
+     * Largest graph for the exact mode, which draws a number for every pair
+     * of nodes.
+     */
+    static final int EXACT_MAX = 100000;
+
+    @Param({"200", "10000", "1000000"})
+    public int size;
+
+    @Param({"exact", "skip", "parallel"})
+    public String mode;
+
+    private WireER wire;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (mode.equals("exact") && size > EXACT_MAX) {
+            throw new IllegalArgumentException("The exact mode draws " + (long) size * (size - 1) / 2
+                    + " numbers for " + size + " nodes, use -p size=<" + EXACT_MAX + " or less>");
+        }
+        Simulation.configure("er", size, "init.er.mode=" + mode);
+        wire = new WireER("init.er");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Graph wire() {
+        Graph g = new NeighbourListGraph(size, false);
+        wire.wire(g);
+        return g;
+    }
+}
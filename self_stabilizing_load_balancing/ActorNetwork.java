@@ -0,0 +1,434 @@
+package self_stabilizing_load_balancing;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link SelfED} with every node an actor on a virtual thread, for
+ * <code>csr.mode actor</code> of {@link CsrSimulator}: the nodes run their
+ * cycles on a wall clock and handle proposals and Acks as they arrive, so
+ * the interleavings are those of the JVM scheduler, not of an event queue.
+ * <p>
+ * Messages go through a lock-free multi-producer single-consumer mailbox
+ * per actor. Loss and delay are injected at the sender, as
+ * UnreliableTransport over UniformRandomTransport would (the delay in
+ * simulated time is scaled to wall time); the receiver holds a message
+ * until its delivery time. The loads are shared: a node reads the loads of
+ * its neighbors and RRProposal adds to their tentative loads, as the event
+ * driven SelfED does, through atomic accesses. Everything else is only
+ * touched by the actor of the node.
+ * <p>
+ * Random numbers come from {@link ThreadLocalRandom}; runs are not
+ * reproducible.
+ * <p>
+ * Virtual threads need Java 21. They are looked up when the network is
+ * created, so that the package still compiles and runs on Java 17, where
+ * only this mode is refused.
+ */
+final class ActorNetwork {
+
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    // message kinds
+    private static final int PROPOSAL = 1;
+    private static final int ACK = 2;
+
+    private final CsrGraph graph;
+    private final double[] value; // written by the node's actor, read by any
+    private final double[] tLoad; // added to by any, see addTLoad
+    private final int[] lastReceivedLoad; // of the node's actor only
+    private final int[] lastGaveLoad;
+    private final Actor[] actors;
+    private final long cycleNanos;
+    private final double nanosPerUnit; // wall time of one unit of simulated time
+    private final float loss;
+    private final long minDelay;
+    private final long delayRange;
+    private final SelfCounters counters;
+    private final ConcurrentLinkedQueue<Scratch> scratch = new ConcurrentLinkedQueue<>();
+    private final ThreadFactory threads = virtualThreads();
+
+    // messages sent and not handled or dropped yet, and cycles running; 0 once quiescent
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder lostDeals = new LongAdder();
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private volatile boolean cycling = true;
+    private volatile boolean done;
+    private long startNanos;
+
+    /**
+     * @param load initial loads, copied
+     * @param firstCycle time of the first cycle of each node, in simulated time
+     * @param step cycle length in simulated time
+     * @param cycleNanos cycle length in wall time
+     */
+    ActorNetwork(CsrGraph graph, double[] load, long[] firstCycle, long step, long cycleNanos,
+                 float loss, long minDelay, long delayRange, SelfCounters counters) {
+        int n = graph.size();
+        this.graph = graph;
+        this.value = load.clone();
+        this.tLoad = load.clone();
+        this.lastReceivedLoad = new int[n];
+        this.lastGaveLoad = new int[n];
+        this.cycleNanos = cycleNanos;
+        this.nanosPerUnit = (double) cycleNanos / step;
+        this.loss = loss;
+        this.minDelay = minDelay;
+        this.delayRange = delayRange;
+        this.counters = counters;
+        actors = new Actor[n];
+        for (int p = 0; p < n; p++) {
+            actors[p] = new Actor(p, (long) (firstCycle[p] * nanosPerUnit),
+                    counters.enabled ? counters.stripe() : null);
+        }
+    }
+
+    /**
+     * <code>Thread.ofVirtual().name("selfed-actor-", 0).factory()</code>
+     */
+    private static ThreadFactory virtualThreads() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, "selfed-actor-", 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("csr.mode actor needs virtual threads (Java 21 or later),"
+                    + " this is Java " + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * Starts the actors; simulated time 0 is now.
+     */
+    void start() {
+        for (Actor a : actors) a.thread = threads.newThread(a);
+        startNanos = System.nanoTime();
+        for (Actor a : actors) a.thread.start();
+    }
+
+    /**
+     * Sleeps until the wall time of simulated time <code>time</code>.
+     */
+    void sleepUntil(long time) throws InterruptedException {
+        long wait;
+        while ((wait = startNanos + (long) (time * nanosPerUnit) - System.nanoTime()) > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+    /**
+     * Copies the current loads, as far as the other threads have published
+     * them, into <code>into</code>.
+     */
+    void loads(double[] into) {
+        for (int p = 0; p < into.length; p++) into[p] = (double) DOUBLES.getOpaque(value, p);
+    }
+
+    /**
+     * Stops the cycles, waits until every message sent has been handled or
+     * dropped and the actors have ended, then applies the last deals to the
+     * loads (l5-l8).
+     */
+    void quiesce() throws InterruptedException {
+        cycling = false;
+        for (Actor a : actors) LockSupport.unpark(a.thread); // no cycle to wait for
+        while (inFlight.get() > 0) Thread.sleep(1);
+        done = true;
+        for (Actor a : actors) LockSupport.unpark(a.thread);
+        for (Actor a : actors) a.thread.join();
+        for (int p = 0; p < value.length; p++) {
+            value[p] += lastReceivedLoad[p] - lastGaveLoad[p];
+            lastReceivedLoad[p] = 0;
+            lastGaveLoad[p] = 0;
+            tLoad[p] = value[p];
+        }
+    }
+
+    long delivered() {
+        return delivered.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Load added to the network by accepted proposals whose Ack was
+     * dropped: the receiver keeps the deal, the proposer never gives it.
+     */
+    long lostDeals() {
+        return lostDeals.sum();
+    }
+
+    long cycles() {
+        return cycles.sum();
+    }
+
+    /**
+     * Cycles left out because their actor was busy until the next one was
+     * due, i.e. the machine could not keep up with the cycle length.
+     */
+    long skipped() {
+        return skipped.sum();
+    }
+
+//--------------------------------------------------------------------------
+// the protocol
+//--------------------------------------------------------------------------
+
+    /**
+     * l5-l23 of node <code>p</code>, in the form of {@link CsrSimulator}'s
+     * event mode.
+     */
+    private void cycle(Actor a, long now) {
+        int p = a.id;
+        // l5-l8
+        double v = value[p] + lastReceivedLoad[p] - lastGaveLoad[p];
+        DOUBLES.setOpaque(value, p, v);
+        lastReceivedLoad[p] = 0;
+        lastGaveLoad[p] = 0;
+        DOUBLES.setVolatile(tLoad, p, v);
+
+        int[] neighbor = graph.neighbor;
+        int from = graph.offset[p];
+        int degree = graph.offset[p + 1] - from;
+        if (degree == 0) return;
+        Scratch s = scratch.poll();
+        if (s == null) s = new Scratch();
+        s.ensure(degree);
+        try {
+            // l9-l13, on one reading of each neighbor's load
+            int nLess = 0;
+            double minLoad = v;
+            for (int k = from; k < from + degree; k++) {
+                double qLoad = (double) DOUBLES.getOpaque(value, neighbor[k]);
+                if (qLoad < v) {
+                    s.less[nLess] = neighbor[k];
+                    s.load[nLess++] = qLoad;
+                    if (qLoad < minLoad) minLoad = qLoad;
+                }
+            }
+            if (nLess == 0) return;
+
+            // l14-l18
+            int loadToTransfer = Math.max(0, (int) Math.ceil((v - minLoad) / 2));
+            double tentativeLoad = v - loadToTransfer;
+            int nPv = 0;
+            for (int k = 0; k < nLess; k++) {
+                if (s.load[k] < tentativeLoad) s.less[nPv++] = s.less[k];
+            }
+
+            // l19: RRProposal, adding what it hands out to the receivers' tentative loads
+            WaterFill wf = s.waterFill.ensure(nPv);
+            for (int k = 0; k < nPv; k++) {
+                wf.tLoad[k] = s.load[k] = (double) DOUBLES.getVolatile(tLoad, s.less[k]);
+            }
+            wf.allocate(nPv, tentativeLoad, loadToTransfer);
+            int proposals = 0;
+            for (int k = 0; k < nPv; k++) {
+                if (wf.tLoad[k] != s.load[k]) addTLoad(s.less[k], wf.tLoad[k] - s.load[k]);
+                if (wf.amount[k] > 0) {
+                    send(PROPOSAL, p, s.less[k], wf.amount[k], tentativeLoad, now, now);
+                    proposals++;
+                }
+            }
+            if (a.counts != null) a.counts.proposals(proposals, wf.unitSteps);
+        } finally {
+            scratch.offer(s);
+        }
+    }
+
+    /**
+     * l24-l31 at node <code>a</code>.
+     */
+    private void proposal(Actor a, Message m, long now) {
+        int q = a.id;
+        double v = value[q];
+        if (m.tentative > v) {
+            int deal = Math.min((int) (m.tentative - v), m.amount);
+            send(ACK, q, m.from, deal, 0, m.proposedAt, now);
+            lastReceivedLoad[q] += deal;
+            addTLoad(q, deal);
+            if (a.counts != null) a.counts.accept(deal);
+        } else {
+            send(ACK, q, m.from, 0, 0, m.proposedAt, now);
+            if (a.counts != null) a.counts.reject();
+        }
+    }
+
+    /**
+     * l32-l34 at node <code>a</code>.
+     */
+    private void ack(Actor a, Message m, long now) {
+        lastGaveLoad[a.id] += m.amount;
+        addTLoad(a.id, -m.amount);
+        if (a.counts != null) a.counts.ack((long) ((now - m.proposedAt) / nanosPerUnit));
+    }
+
+    private void addTLoad(int p, double delta) {
+        double t;
+        do {
+            t = (double) DOUBLES.getVolatile(tLoad, p);
+        } while (!DOUBLES.compareAndSet(tLoad, p, t, t + delta));
+    }
+
+    /**
+     * The transport: drops the message with probability <code>loss</code>,
+     * otherwise puts it into the receiver's mailbox with its delivery time.
+     */
+    private void send(int kind, int from, int to, int amount, double tentative, long proposedAt, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (loss > 0 && random.nextFloat() < loss) {
+            dropped.increment();
+            if (kind == ACK) lostDeals.add(amount);
+            return;
+        }
+        long delay = delayRange == 1 ? minDelay : minDelay + random.nextLong(delayRange);
+        inFlight.incrementAndGet();
+        actors[to].offer(new Message(kind, from, amount, tentative, proposedAt, now + (long) (delay * nanosPerUnit)));
+    }
+
+//--------------------------------------------------------------------------
+// actors
+//--------------------------------------------------------------------------
+
+    private static final class Message {
+
+        volatile Message next; // in the mailbox
+        final int kind;
+        final int from;
+        final int amount;
+        final double tentative;
+        final long proposedAt; // wall time the proposal was sent
+        final long deliverAt;
+
+        Message(int kind, int from, int amount, double tentative, long proposedAt, long deliverAt) {
+            this.kind = kind;
+            this.from = from;
+            this.amount = amount;
+            this.tentative = tentative;
+            this.proposedAt = proposedAt;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    private final class Actor implements Runnable {
+
+        final int id;
+        final long firstCycle; // wall time after the start
+        final SelfCounters.Stripe counts; // null unless counting
+        Thread thread;
+        private volatile boolean parked;
+
+        // mailbox: producers swap the tail, the actor follows head.next
+        private final AtomicReference<Message> tail;
+        private Message head;
+        private PriorityQueue<Message> held; // received, not due yet
+
+        Actor(int id, long firstCycle, SelfCounters.Stripe counts) {
+            this.id = id;
+            this.firstCycle = firstCycle;
+            this.counts = counts;
+            head = new Message(0, 0, 0, 0, 0, 0);
+            tail = new AtomicReference<>(head);
+        }
+
+        void offer(Message m) {
+            tail.getAndSet(m).next = m;
+            if (parked) LockSupport.unpark(thread);
+        }
+
+        private Message poll() {
+            Message next = head.next;
+            if (next != null) head = next;
+            return next;
+        }
+
+        @Override
+        public void run() {
+            long next = startNanos + firstCycle;
+            int handled = 0;
+            while (!done) {
+                long now = System.nanoTime();
+                if (now >= next && cycling) {
+                    runCycle(now);
+                    next += cycleNanos;
+                    if (next <= now) { // fell behind, wait for the next cycle due
+                        long missed = (now - next) / cycleNanos + 1;
+                        skipped.add(missed);
+                        next += missed * cycleNanos;
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                Message m;
+                if (held != null && !held.isEmpty() && held.peek().deliverAt <= now) {
+                    m = held.poll();
+                } else if ((m = poll()) != null && m.deliverAt > now) {
+                    if (held == null) held = new PriorityQueue<>(Comparator.comparingLong(h -> h.deliverAt));
+                    held.add(m);
+                    continue;
+                }
+                if (m != null) {
+                    if (m.kind == PROPOSAL) proposal(this, m, now);
+                    else ack(this, m, now);
+                    delivered.increment();
+                    inFlight.decrementAndGet(); // after the Ack it sent, if any
+                    if (++handled % 64 == 0) Thread.yield();
+                    continue;
+                }
+                long wake = held != null && !held.isEmpty() ? held.peek().deliverAt : Long.MAX_VALUE;
+                if (cycling) wake = Math.min(wake, next);
+                parked = true;
+                if (head.next == null && !done) {
+                    if (wake == Long.MAX_VALUE) LockSupport.park(this);
+                    else LockSupport.parkNanos(this, wake - now);
+                }
+                parked = false;
+            }
+        }
+
+        private void runCycle(long now) {
+            // counted as in flight, so that quiesce waits for the proposals it sends
+            inFlight.incrementAndGet();
+            try {
+                if (!cycling) return;
+                cycle(this, now);
+                cycles.increment();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Buffers of a cycle, borrowed from a pool: a virtual thread does not
+     * keep a carrier, so thread locals would be per actor.
+     */
+    private static final class Scratch {
+
+        int[] less = new int[0];
+        double[] load = new double[0];
+        final WaterFill waterFill = new WaterFill();
+
+        void ensure(int degree) {
+            if (less.length < degree) {
+                less = new int[degree];
+                load = new double[degree];
+            }
+        }
+    }
+}
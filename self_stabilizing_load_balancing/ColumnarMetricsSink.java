@@ -0,0 +1,77 @@
+package self_stabilizing_load_balancing;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary output of {@link MSEObserver}: fixed-width little endian records in
+ * a memory-mapped file, which numpy can map directly (see the README).
+ * <p>
+ * Layout: <code>int magic ("MSEC"), int version, int columns, int
+ * headerBytes, long rows</code>, then each column name as <code>int
+ * length</code> + UTF-8 bytes, padded to <code>headerBytes</code> (a
+ * multiple of 8). Each record is the cycle as a long followed by one double
+ * per remaining column. <code>rows</code> is updated as records are added,
+ * so a file cut short by a crash is still readable.
+ */
+public class ColumnarMetricsSink implements MetricsSink {
+
+    static final int MAGIC = 0x4d534543; // "MSEC"
+    static final int VERSION = 1;
+    private static final int ROWS_OFFSET = 16;
+    private static final long CHUNK_ROWS = 1 << 16;
+
+    private final FileChannel channel;
+    private final int headerBytes;
+    private final int recordBytes;
+    private MappedByteBuffer map;
+    private long mappedRows;
+    private long rows;
+
+    public ColumnarMetricsSink(String filename, String[] columns) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        int names = 0;
+        byte[][] encoded = new byte[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            encoded[i] = columns[i].getBytes(StandardCharsets.UTF_8);
+            names += 4 + encoded[i].length;
+        }
+        headerBytes = (24 + names + 7) & ~7;
+        recordBytes = 8 * columns.length;
+        remap(CHUNK_ROWS);
+        map.putInt(MAGIC).putInt(VERSION).putInt(columns.length).putInt(headerBytes).putLong(0);
+        for (byte[] name : encoded) map.putInt(name.length).put(name);
+    }
+
+    public void row(long cycle, double[] values) throws IOException {
+        if (rows == mappedRows) remap(2 * mappedRows);
+        int pos = (int) (headerBytes + rows * recordBytes);
+        map.putLong(pos, cycle);
+        for (int i = 0; i < values.length; i++) {
+            map.putDouble(pos + 8 + 8 * i, values[i]);
+        }
+        map.putLong(ROWS_OFFSET, ++rows);
+    }
+
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            map.force();
+            channel.truncate(headerBytes + rows * recordBytes);
+            channel.close();
+        }
+    }
+
+    private void remap(long capacityRows) throws IOException {
+        long size = headerBytes + capacityRows * recordBytes;
+        if (size > Integer.MAX_VALUE) throw new IOException("Metrics file exceeds 2 GB");
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        mappedRows = capacityRows;
+    }
+}
@@ -0,0 +1,134 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Convergence test and convergence rate of the series {@link MSEObserver}
+ * reports.
+ * <p>
+ * The notebooks fit <code>MSE(t) = a exp(-b t) + c</code>. The differences
+ * of successive observations, <code>a exp(-b t) (1 - exp(-b dt))</code>,
+ * decay at the same rate whatever the floor <code>c</code>, so
+ * <code>b</code> is estimated online as minus the slope of a least squares
+ * line through <code>(t, ln(MSE(t) - MSE(t + dt)))</code>, with older points
+ * weighted down by <code>1 - 1 / rate.window</code> per observation.
+ * <p>
+ * Parameters (under the observer prefix):
+ * <ul>
+ * <li><code>stop.discrepancy</code>: end the run when the discrepancy falls
+ * below this value (off by default)</li>
+ * <li><code>stop.stable</code>: end the run when the MSE has not changed for
+ * this many observations (off by default)</li>
+ * <li><code>stop.tolerance</code>: relative MSE change still counted as
+ * unchanged, default 0</li>
+ * <li><code>rate.window</code>: observations the rate estimate remembers,
+ * default 20</li>
+ * <li><code>stop.summary</code>: CSV file a result line is appended to
+ * (none by default)</li>
+ * </ul>
+ */
+final class Convergence {
+
+    private final String prefix;
+    private final double discrepancyThreshold;
+    private final int stableCount;
+    private final double tolerance;
+    private final double keep;
+    private final String summaryFile;
+
+    private long observations;
+    private int stable;
+    private double lastMse = Double.NaN;
+    private long lastTime;
+    private double t0 = Double.NaN;
+    // weighted sums for the fit of ln(difference) against time
+    private double s0, st, sy, stt, sty;
+    private int points;
+
+    private boolean converged;
+    private String reason;
+    private long convergedTime = -1;
+    private boolean reported;
+
+    Convergence(String prefix) {
+        this.prefix = prefix;
+        discrepancyThreshold = Configuration.getDouble(prefix + ".stop.discrepancy", Double.NEGATIVE_INFINITY);
+        stableCount = Configuration.getInt(prefix + ".stop.stable", 0);
+        tolerance = Configuration.getDouble(prefix + ".stop.tolerance", 0);
+        keep = 1 - 1.0 / Math.max(1, Configuration.getInt(prefix + ".rate.window", 20));
+        summaryFile = Configuration.getString(prefix + ".stop.summary", null);
+    }
+
+    /**
+     * @return true if the run should end
+     */
+    boolean observe(long time, double mse, double discrepancy) {
+        observations++;
+        if (!Double.isNaN(lastMse)) {
+            double diff = lastMse - mse;
+            if (diff > 0 && time > lastTime) {
+                if (Double.isNaN(t0)) t0 = lastTime;
+                double t = lastTime - t0;
+                double y = Math.log(diff);
+                s0 = keep * s0 + 1;
+                st = keep * st + t;
+                sy = keep * sy + y;
+                stt = keep * stt + t * t;
+                sty = keep * sty + t * y;
+                points++;
+            }
+            if (Math.abs(diff) <= tolerance * Math.abs(lastMse)) stable++;
+            else stable = 0;
+        }
+        lastMse = mse;
+        lastTime = time;
+        if (converged) return true;
+        if (discrepancy < discrepancyThreshold) {
+            reason = "discrepancy";
+        } else if (stableCount > 0 && stable >= stableCount) {
+            reason = "stable";
+        } else {
+            return false;
+        }
+        converged = true;
+        convergedTime = time;
+        System.out.printf("[Converged] %s at time %d after %d observations, MSE %.6f, discrepancy %.2f,"
+                + " rate %.4e%n", reason, time, observations, mse, discrepancy, rate());
+        report(mse, discrepancy);
+        return true;
+    }
+
+    /**
+     * Estimated <code>b</code> of <code>a exp(-b t) + c</code>, per time
+     * unit; NaN until two decreasing steps have been seen.
+     */
+    double rate() {
+        double det = s0 * stt - st * st;
+        if (points < 2 || det <= 0) return Double.NaN;
+        return -(s0 * sty - st * sy) / det;
+    }
+
+    /**
+     * Appends the result to the summary file, once per run. Called on
+     * convergence and when the observer closes.
+     */
+    void report(double mse, double discrepancy) {
+        if (reported || summaryFile == null || observations == 0) return;
+        reported = true;
+        boolean header = !Files.exists(Paths.get(summaryFile));
+        try (Writer w = new FileWriter(summaryFile, true)) {
+            if (header) w.write("Observer,Converged,Reason,Time,Observations,MSE,Discrepancy,Rate\n");
+            w.write(String.format("%s,%b,%s,%d,%d,%.6f,%.2f,%.6e%n", prefix, converged,
+                    converged ? reason : "none", converged ? convergedTime : lastTime, observations, mse,
+                    discrepancy, rate()));
+        } catch (IOException e) {
+            System.err.println("Error writing convergence summary: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package self_stabilizing_load_balancing;
+
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.core.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Directed graph in compressed sparse row form: the neighbors of node
+ * <code>i</code> are <code>neighbor[offset[i]]</code> to
+ * <code>neighbor[offset[i + 1] - 1]</code>, as node indices. Nodes also
+ * carry their PeerSim ID.
+ * <p>
+ * File layout, little endian: <code>int magic ("CSRG"), int version, int n,
+ * int 0, long m</code>, then <code>long id[n]</code>, <code>int
+ * offset[n + 1]</code> and <code>int neighbor[m]</code>. Numpy can read it
+ * with three <code>np.fromfile</code> calls (see the README).
+ */
+public final class CsrGraph {
+
+    static final int MAGIC = 0x43535247; // "CSRG"
+    static final int VERSION = 1;
+    static final int HEADER = 24;
+    private static final int CHUNK = 1 << 20;
+
+    final int n;
+    final long[] id;
+    final int[] offset;
+    final int[] neighbor;
+
+    CsrGraph(long[] id, int[] offset, int[] neighbor) {
+        this.n = id.length;
+        this.id = id;
+        this.offset = offset;
+        this.neighbor = neighbor;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int edges() {
+        return offset[n];
+    }
+
+    public int degree(int i) {
+        return offset[i + 1] - offset[i];
+    }
+
+    public int neighbor(int i, int k) {
+        return neighbor[offset[i] + k];
+    }
+
+    public long id(int i) {
+        return id[i];
+    }
+
+    /**
+     * The current links of the given linkable protocol, in neighbor order.
+     */
+    public static CsrGraph fromNetwork(int linkablePid) {
+        int n = Network.size();
+        long[] id = new long[n];
+        int[] offset = new int[n + 1];
+        long m = 0;
+        for (int i = 0; i < n; i++) {
+            Node node = Network.get(i);
+            id[i] = node.getID();
+            m += ((Linkable) node.getProtocol(linkablePid)).degree();
+            if (m > Integer.MAX_VALUE) throw new IllegalStateException("Too many edges for a CSR graph: " + m);
+            offset[i + 1] = (int) m;
+        }
+        int[] neighbor = new int[(int) m];
+        for (int i = 0; i < n; i++) {
+            Linkable linkable = (Linkable) Network.get(i).getProtocol(linkablePid);
+            int base = offset[i];
+            for (int k = 0; k < offset[i + 1] - base; k++) {
+                neighbor[base + k] = linkable.getNeighbor(k).getIndex();
+            }
+        }
+        return new CsrGraph(id, offset, neighbor);
+    }
+
+    public void write(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0).putLong(edges());
+            for (long v : id) {
+                if (buf.remaining() < 8) drain(buf, channel);
+                buf.putLong(v);
+            }
+            putInts(offset, offset.length, buf, channel);
+            putInts(neighbor, edges(), buf, channel);
+            drain(buf, channel);
+        }
+    }
+
+    static void putInts(int[] a, int length, ByteBuffer buf, FileChannel channel) throws IOException {
+        for (int i = 0; i < length; ) {
+            if (buf.remaining() < 4) drain(buf, channel);
+            int k = Math.min(length - i, buf.remaining() / 4);
+            buf.asIntBuffer().put(a, i, k);
+            buf.position(buf.position() + 4 * k);
+            i += k;
+        }
+    }
+
+    static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    public static CsrGraph read(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buf.limit(HEADER);
+            fill(buf, channel);
+            if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+                throw new IOException(filename + " is not a CSR graph file");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) throw new IOException("Unsupported CSR graph version " + version);
+            int n = buf.getInt();
+            buf.getInt();
+            long m = buf.getLong();
+            if (n < 0 || m < 0 || m > Integer.MAX_VALUE
+                    || channel.size() != HEADER + 8L * n + 4L * (n + 1) + 4 * m) {
+                throw new IOException(filename + " is truncated or corrupt");
+            }
+            long[] id = new long[n];
+            int[] offset = new int[n + 1];
+            int[] neighbor = new int[(int) m];
+            for (int i = 0; i < n; ) {
+                if (buf.remaining() < 8) refill(buf, channel);
+                int k = Math.min(n - i, buf.remaining() / 8);
+                buf.asLongBuffer().get(id, i, k);
+                buf.position(buf.position() + 8 * k);
+                i += k;
+            }
+            getInts(offset, buf, channel);
+            getInts(neighbor, buf, channel);
+            return new CsrGraph(id, offset, neighbor);
+        }
+    }
+
+    private static void getInts(int[] a, ByteBuffer buf, FileChannel channel) throws IOException {
+        for (int i = 0; i < a.length; ) {
+            if (buf.remaining() < 4) refill(buf, channel);
+            int k = Math.min(a.length - i, buf.remaining() / 4);
+            buf.asIntBuffer().get(a, i, k);
+            buf.position(buf.position() + 4 * k);
+            i += k;
+        }
+    }
+
+    private static void refill(ByteBuffer buf, FileChannel channel) throws IOException {
+        buf.compact();
+        fill(buf, channel);
+    }
+
+    private static void fill(ByteBuffer buf, FileChannel channel) throws IOException {
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+            // keep reading until the buffer is full or the file ends
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,1410 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+import peersim.dynamics.WireGraph;
+import peersim.graph.Graph;
+import peersim.util.ExtendedRandom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the {@link SelfED} proposal/Ack algorithm without PeerSim's node
+ * objects: the graph is a {@link CsrGraph}, node state is held in one array
+ * per field, and events live in a binary heap of primitive arrays.
+ * <p>
+ * It reads the same configuration files as PeerSim:
+ * <pre>
+ * java self_stabilizing_load_balancing.CsrSimulator Configuration/config-testing_ss_ws.txt [name=value ...]
+ * </pre>
+ * and replays what the event driven simulator does with them, drawing from
+ * <code>CommonState.r</code> in the same order: the graph initializers are
+ * the PeerSim WireGraph classes themselves, run on an edge-list Graph
+ * (directly or through TopologyCache); value initializers
+ * (LinearDistribution, PeakDistribution, PeakDistributionInitializer,
+ * UniformDistribution), the CDScheduler, the
+ * UnreliableTransport/UniformRandomTransport pair and the event queue with
+ * its random tie-breaking bits are re-implemented. The MSEObserver and
+ * TopologyExport controls run as configured, other controls are skipped.
+ * For the same seed the MSE/discrepancy output is the same as the PeerSim
+ * run.
+ * <p>
+ * With <code>csr.mode sync</code> the nodes instead run their cycles in
+ * synchronous rounds on <code>csr.threads</code> threads (default: all
+ * cores). A round has three phases separated by barriers, and in each a
+ * node only writes its own state and the proposal slots of its links:
+ * <ol>
+ * <li>settle: apply the Acks and proposals of the previous round to the
+ * value (l5-l8)</li>
+ * <li>propose: l9-l19 against the values of the neighbors, which no one
+ * writes in this phase; RRProposal fills the receivers' tentative loads as
+ * they were at the start of the round</li>
+ * <li>answer: every receiver answers the proposals on its in-links
+ * (l24-l31), and the deal replaces the proposal in the link's slot</li>
+ * </ol>
+ * Messages are neither delayed nor dropped, so every deal is added to the
+ * receiver and taken from the sender and the total load is conserved. No
+ * random numbers are drawn after initialization, and the per node
+ * arithmetic does not depend on the partitioning, so the result only depends
+ * on <code>random.seed</code>, not on the number of threads. It is not the
+ * same as the event driven run, whose nodes see each other's updates within
+ * a cycle.
+ * <p>
+ * <code>csr.partitions</code> splits a sync run across that many processes
+ * on this machine, each owning a range of nodes of about equal work and
+ * running its rounds on <code>csr.threads</code> threads (default: the
+ * cores divided by the partitions). The process started by hand is
+ * partition 0 and starts the others (see {@link PartitionTransport}). All
+ * of them initialize the whole network, drawing the same random numbers,
+ * then exchange one frame per pair of partitions after each phase: the
+ * settled loads of the nodes the other side's nodes compare with, the
+ * proposals across partitions, and their deals. Partition 0 gathers the
+ * loads whenever a control is due and runs the controls, so the output is
+ * the same as that of a sync run in one process.
+ * <p>
+ * With <code>csr.mode actor</code> every node is an actor on a virtual
+ * thread (see {@link ActorNetwork}) that runs its cycles every
+ * <code>csr.actor.cycle_ms</code> milliseconds of wall time (default 100)
+ * and handles messages as they come, with the transport's loss and delays
+ * scaled to wall time. <code>csr.threads</code>, if given, sets the number
+ * of carrier threads. The controls run once per cycle of wall time on the
+ * loads at that moment, and a control that ends the run (see
+ * {@link Convergence}) gives the time to convergence. At the end the cycles
+ * stop, the messages still on their way are handled, and the run reports
+ * the messages per second and checks that the total load is the initial
+ * one plus what dropped Acks added.
+ * <p>
+ * The SelfED to simulate is the protocol given by <code>csr.protocol</code>,
+ * by default the first protocol of class SelfED.
+ */
+public class CsrSimulator {
+
+    // event kinds
+    private static final int CYCLE = 0;
+    private static final int PROPOSAL = 1;
+    private static final int ACK = 2;
+    private static final int CONTROL = 3;
+
+    private ExtendedRandom r = CommonState.r; // replaced when a TopologyCache restores the generator
+    private final int n;
+    private final long endTime;
+    private final long logTime;
+    private long nextLog;
+
+    // SelfED protocol and its scheduling
+    private final String protocol;
+    private final long step;
+    private final long until;
+    private boolean unreliable;
+    private float loss;
+    private long minDelay;
+    private long delayRange = 1;
+
+    private CsrGraph graph;
+    private final double[] value;
+    private final double[] tLoad;
+    private final int[] lastReceivedLoad;
+    private final int[] lastGaveLoad;
+
+    private final EventHeap heap = new EventHeap();
+    private final SelfCounters counters; // work counters of protocol.<protocol>.counters
+
+    // sync mode
+    private final boolean sync;
+    private final boolean actors;
+    private long[] firstCycle; // actor mode: time of each node's first cycle
+    private final int threads;
+    private int[] transfer; // per link: proposed amount, then the deal
+    private double[] tentative; // per node, of the current round
+    private int[] inOffset, inLink, inSource; // in-links of each node
+    private int[] blockStart; // node ranges of about equal work
+    private ThreadLocal<SyncScratch> syncScratch;
+    private int ownFrom, ownTo; // nodes of this partition
+
+    // partitions of sync mode, each in a process of its own
+    private final int partitions;
+    private final int partition;
+    String[] commandLine; // of this process with its seed, to start the other partitions
+    private PartitionTransport transport;
+    private int[] partitionStart;
+    private int[][] ghostSend, ghostReceive; // per partition: nodes whose load it reads, sorted
+    private int[][] crossOut, crossOutSource; // per partition: links from here to there, and their sources
+    private int[][] crossIn, crossInSource; // per partition: links from there to here, and their sources
+
+    // timing, for ScalingReport
+    long initMillis;
+    long runMillis;
+    long rounds;
+
+    // controls, by order
+    private Object[] control;
+    private long[] controlNext;
+    private long[] controlStep;
+    private long[] controlUntil;
+    private boolean[] controlFinal;
+
+    // cycle scratch, grown to the largest degree
+    private int[] less = new int[0];
+    private int[] offer = new int[0];
+    private int[] proposed = new int[0];
+    private final WaterFill waterFill = new WaterFill();
+    private final HashOrder hashOrder = new HashOrder();
+
+    public CsrSimulator() {
+        n = Configuration.getInt("network.size");
+        endTime = Configuration.getLong("simulation.endtime");
+        logTime = Configuration.getLong("simulation.logtime", Long.MAX_VALUE);
+        CommonState.setEndTime(endTime);
+        protocol = findProtocol();
+        String prefix = "protocol." + protocol;
+        step = Configuration.getLong(prefix + ".step");
+        until = Configuration.getLong(prefix + ".until", Long.MAX_VALUE);
+        readTransport("protocol." + Configuration.getString(prefix + ".transport"));
+        if (Configuration.getBoolean(prefix + ".batch", false)) {
+            System.err.println("CsrSimulator: " + prefix + ".batch is ignored, messages are simulated one by one");
+        }
+        if (!HashOrder.MATCHES) {
+            System.err.println("CsrSimulator: the HashMap of this JDK does not iterate as HashOrder expects, "
+                    + "proposals are sent in another order than in PeerSim");
+        }
+        value = new double[n];
+        tLoad = new double[n];
+        lastReceivedLoad = new int[n];
+        lastGaveLoad = new int[n];
+        String mode = Configuration.getString("csr.mode", "event");
+        if (!mode.equals("event") && !mode.equals("sync") && !mode.equals("actor")) {
+            throw new IllegalArgumentException("Unknown csr.mode " + mode);
+        }
+        sync = mode.equals("sync");
+        actors = mode.equals("actor");
+        if (actors) firstCycle = new long[n];
+        partitions = Math.max(1, Configuration.getInt("csr.partitions", 1));
+        partition = Configuration.getInt("csr.partition", 0);
+        if (partitions > 1 && !sync) throw new IllegalArgumentException("csr.partitions needs csr.mode sync");
+        threads = Math.max(1, Configuration.getInt("csr.threads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / partitions)));
+        counters = SelfCounters.renew(prefix);
+        if (partitions > 1 && counters.enabled) {
+            throw new IllegalArgumentException(prefix + ".counters is not supported with csr.partitions");
+        }
+        ownTo = n;
+    }
+
+    private static String findProtocol() {
+        if (Configuration.contains("csr.protocol")) return Configuration.getString("csr.protocol");
+        for (String name : Configuration.getNames("protocol")) {
+            if (Configuration.getString(name).endsWith("SelfED")) return name.substring("protocol.".length());
+        }
+        throw new IllegalArgumentException("No SelfED protocol in the configuration");
+    }
+
+    private void readTransport(String prefix) {
+        String cls = Configuration.getString(prefix);
+        if (cls.endsWith("UnreliableTransport")) {
+            unreliable = true;
+            loss = (float) Configuration.getDouble(prefix + ".drop");
+            readTransport("protocol." + Configuration.getString(prefix + ".transport"));
+        } else if (cls.endsWith("UniformRandomTransport")) {
+            minDelay = Configuration.getLong(prefix + ".mindelay");
+            long maxDelay = Configuration.getLong(prefix + ".maxdelay", minDelay);
+            delayRange = maxDelay - minDelay + 1;
+        } else {
+            throw new IllegalArgumentException("CsrSimulator does not support transport " + cls + " in " + prefix);
+        }
+    }
+
+//--------------------------------------------------------------------------
+// initialization
+//--------------------------------------------------------------------------
+
+    private void initialize() {
+        String linkable = Configuration.getString("protocol." + protocol + ".linkable");
+        EdgeList edges = new EdgeList(n);
+        for (String name : Configuration.getNames("init")) {
+            Class<?> cls = Configuration.getClass(name);
+            String target = Configuration.getString(name + ".protocol", "");
+            if (WireGraph.class.isAssignableFrom(cls)) {
+                if (!target.equals(linkable)) continue;
+                edges.undirected = undirected(name);
+                ((WireGraph) Configuration.getInstance(name)).wire(edges);
+                continue;
+            }
+            if (cls == TopologyCache.class) {
+                if (target.equals(linkable)) edges.add(cached(name));
+                continue;
+            }
+            switch (cls.getSimpleName()) {
+                case "LinearDistribution":
+                    if (target.equals(protocol)) linear(name);
+                    break;
+                case "PeakDistribution":
+                case "PeakDistributionInitializer":
+                    if (target.equals(protocol)) peak(name, cls.getSimpleName().equals("PeakDistribution"));
+                    break;
+                case "UniformDistribution":
+                    if (target.equals(protocol)) uniform(name);
+                    break;
+                case "CDScheduler":
+                    if (Arrays.asList(target.split("\\s+")).contains(protocol)) {
+                        schedule(Configuration.contains(name + ".randstart"));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("CsrSimulator does not support initializer " + name
+                            + " (" + cls.getName() + ")");
+            }
+        }
+        graph = edges.toCsr();
+        int maxDegree = 0;
+        for (int i = 0; i < n; i++) maxDegree = Math.max(maxDegree, graph.degree(i));
+        less = new int[maxDegree];
+        offer = new int[maxDegree];
+        proposed = new int[maxDegree];
+    }
+
+    private static boolean undirected(String name) {
+        return Configuration.contains(name + ".undir") || Configuration.contains(name + ".undirected");
+    }
+
+    /**
+     * The links of a {@link TopologyCache} initializer, generated on their
+     * own and stored if they are not cached yet.
+     */
+    private CsrGraph cached(String name) {
+        TopologyCache cache = new TopologyCache(name);
+        long start = System.nanoTime();
+        CsrGraph cached = cache.cached();
+        if (cached != null) {
+            r = CommonState.r; // set to its state after the graph was generated
+            return cached;
+        }
+        EdgeList fresh = new EdgeList(n);
+        fresh.undirected = undirected(name);
+        cache.generator().wire(fresh);
+        CsrGraph graph = fresh.toCsr();
+        cache.store(graph, start);
+        return graph;
+    }
+
+    private void linear(String name) {
+        double max = Configuration.getDouble(name + ".max");
+        double min = Configuration.getDouble(name + ".min", -max);
+        double step = (max - min) / (n - 1);
+        for (int i = 0; i < n; i++) value[i] = min + i * step;
+    }
+
+    private void peak(String name, boolean vector) {
+        double peak = Configuration.getDouble(name + ".value");
+        if (!vector) {
+            // example.aggregation.PeakDistributionInitializer: all on the first node
+            Arrays.fill(value, 0);
+            if (n > 0) value[0] = peak;
+            return;
+        }
+        double peaks = Configuration.getDouble(name + ".peaks", 1);
+        double background = Configuration.getDouble(name + ".background", 0);
+        int pn = peaks < 1 ? (int) (peaks * n) : (int) peaks;
+        for (int i = 0; i < n; i++) value[i] = i < pn ? peak / pn : background;
+    }
+
+    private void uniform(String name) {
+        double max = Configuration.getDouble(name + ".max");
+        double min = Configuration.getDouble(name + ".min", -max);
+        for (int i = 0; i < n; i++) value[i] = r.nextDouble() * (max - min) + min;
+    }
+
+    private void schedule(boolean randstart) {
+        if (sync) return; // rounds start together
+        for (int i = 0; i < n; i++) {
+            long delay = randstart ? r.nextLong(step) : 0;
+            if (actors) firstCycle[i] = delay;
+            else if (delay < until) add(delay, CYCLE, i, 0, 0, 0, 0);
+        }
+    }
+
+    private void scheduleControls() {
+        String[] names = Configuration.getNames("control");
+        control = new Object[names.length];
+        controlNext = new long[names.length];
+        controlStep = new long[names.length];
+        controlUntil = new long[names.length];
+        controlFinal = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            String cls = Configuration.getString(name);
+            if (partition > 0) {
+                // partition 0 runs the controls, on the loads of all partitions
+            } else if (cls.endsWith("MSEObserver")) {
+                control[i] = new MSEObserver(name);
+            } else if (cls.endsWith("TopologyExport")) {
+                control[i] = new TopologyExport(name);
+            } else {
+                System.err.println("CsrSimulator: skipping control " + name + " (" + cls + ")");
+            }
+            long from;
+            if (Configuration.contains(name + ".at")) {
+                from = Configuration.getLong(name + ".at");
+                controlUntil[i] = from + 1;
+                controlStep[i] = 1;
+            } else {
+                controlStep[i] = Configuration.getLong(name + ".step", 1);
+                from = Configuration.getLong(name + ".from", 0);
+                controlUntil[i] = Configuration.getLong(name + ".until", Long.MAX_VALUE);
+            }
+            controlNext[i] = from < controlUntil[i] ? from : -1;
+            controlFinal[i] = Configuration.contains(name + ".FINAL");
+            if (sync || actors) continue; // see runControls
+            long next = nextControlTime(i);
+            if (next >= 0 && next < endTime) heap.add(next, i, CONTROL, i, 0, 0, 0, 0);
+        }
+    }
+
+    private long nextControlTime(int i) {
+        long next = controlNext[i];
+        if (next >= 0) controlNext[i] = controlUntil[i] - next > controlStep[i] ? next + controlStep[i] : -1;
+        return next;
+    }
+
+//--------------------------------------------------------------------------
+// simulation
+//--------------------------------------------------------------------------
+
+    public void run() {
+        long start = System.nanoTime();
+        CommonState.setTime(0);
+        if (partitions > 1) startPartitions();
+        initialize();
+        scheduleControls();
+        initMillis = (System.nanoTime() - start) / 1000000;
+        if (partition == 0) {
+            System.err.printf("[CSR] %d nodes, %d links, initialized in %d ms%n", n, graph.edges(), initMillis);
+        }
+        if (sync) {
+            runSync();
+            return;
+        }
+        if (actors) {
+            runActors();
+            return;
+        }
+
+        long events = 0;
+        loop:
+        while (true) {
+            if (heap.size == 0) {
+                System.err.println("CsrSimulator: queue is empty, quitting at time " + CommonState.getTime());
+                break;
+            }
+            long time = heap.firstTime();
+            if (time >= nextLog) {
+                System.err.println("Current time: " + time);
+                do {
+                    nextLog += logTime;
+                } while (time >= nextLog);
+            }
+            if (time >= endTime) {
+                System.err.println("CsrSimulator: reached end time, quitting, leaving " + heap.size
+                        + " unprocessed events in the queue");
+                break;
+            }
+            CommonState.setTime(time);
+            int e = heap.removeFirst();
+            int kind = heap.kind[e];
+            int node = heap.node[e];
+            int sender = heap.sender[e];
+            int amount = heap.amount[e];
+            double tentative = heap.tentative[e];
+            long proposedAt = heap.proposedAt[e];
+            heap.release(e);
+            events++;
+            switch (kind) {
+                case CYCLE:
+                    nextCycle(node);
+                    if (time + step < until) add(step, CYCLE, node, 0, 0, 0, 0);
+                    break;
+                case PROPOSAL:
+                    proposal(node, sender, amount, tentative, proposedAt);
+                    break;
+                case ACK:
+                    if (counters.enabled) counters.ack(time, proposedAt);
+                    lastGaveLoad[node] += amount;
+                    tLoad[node] -= amount;
+                    break;
+                default:
+                    boolean stop = executeControl(node);
+                    long next = nextControlTime(node);
+                    if (next >= 0 && next < endTime) heap.add(next, node, CONTROL, node, 0, 0, 0, 0);
+                    if (stop) {
+                        System.err.println("CsrSimulator: a control ended the run at time " + time);
+                        break loop;
+                    }
+            }
+        }
+        finish();
+        runMillis = (System.nanoTime() - start) / 1000000 - initMillis;
+        System.err.printf("[CSR] %d events in %d ms%n", events, runMillis);
+    }
+
+    private void finish() {
+        for (int i = 0; i < control.length; i++) {
+            if (controlFinal[i]) executeControl(i);
+        }
+        counters.close();
+        for (Object c : control) {
+            if (c instanceof MSEObserver) ((MSEObserver) c).close();
+        }
+    }
+
+    /**
+     * @return true if the control ends the run
+     */
+    private boolean executeControl(int i) {
+        if (control[i] instanceof MSEObserver) {
+            return ((MSEObserver) control[i]).observe(value, graph);
+        } else if (control[i] instanceof TopologyExport) {
+            ((TopologyExport) control[i]).export(graph);
+        }
+        return false;
+    }
+
+//--------------------------------------------------------------------------
+// sync mode
+//--------------------------------------------------------------------------
+
+    private void runSync() {
+        long start = System.nanoTime();
+        prepareSync();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            boolean stop = false;
+            for (long time = 0; time < endTime; time += step) {
+                if (controls(time)) {
+                    stop = true;
+                    if (partition == 0) {
+                        System.err.println("CsrSimulator: a control ended the run at time " + CommonState.getTime());
+                    }
+                    break;
+                }
+                CommonState.setTime(time);
+                if (counters.enabled) counters.at(time);
+                if (time >= nextLog) {
+                    if (partition == 0) System.err.println("Current time: " + time);
+                    do {
+                        nextLog += logTime;
+                    } while (time >= nextLog);
+                }
+                inParallel(pool, this::settle);
+                if (transport != null) exchangeLoads();
+                inParallel(pool, this::propose);
+                if (transport != null) exchangeProposals();
+                inParallel(pool, this::answer);
+                if (transport != null) exchangeDeals();
+                rounds++;
+            }
+            if (!stop) controls(endTime - 1);
+            if (transport != null) {
+                for (boolean f : controlFinal) {
+                    if (f) {
+                        gatherLoads();
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Partition " + partition + ": " + e.getMessage(), e);
+        } finally {
+            pool.shutdown();
+        }
+        finish();
+        runMillis = (System.nanoTime() - start) / 1000000;
+        if (transport == null) {
+            System.err.printf("[CSR] %d rounds on %d threads in %d ms%n", rounds, threads, runMillis);
+            return;
+        }
+        // one write, the partitions share the console
+        System.err.println(String.format(
+                "[CSR] partition %d of %d: %d nodes, %d rounds on %d threads in %d ms, %.1f MB sent", partition,
+                partitions, ownTo - ownFrom, rounds, threads, runMillis, transport.sent / 1e6));
+        try {
+            transport.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the partition connections: " + e.getMessage());
+        }
+    }
+
+    private void prepareSync() {
+        int m = graph.edges();
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        transfer = new int[m];
+        tentative = new double[n];
+        inOffset = new int[n + 1];
+        for (int k = 0; k < m; k++) inOffset[neighbor[k] + 1]++;
+        for (int i = 0; i < n; i++) inOffset[i + 1] += inOffset[i];
+        inLink = new int[m];
+        inSource = new int[m];
+        int[] fill = Arrays.copyOf(inOffset, n);
+        for (int p = 0; p < n; p++) {
+            for (int k = offset[p]; k < offset[p + 1]; k++) {
+                int j = fill[neighbor[k]]++;
+                inLink[j] = k;
+                inSource[j] = p;
+            }
+        }
+        if (partitions > 1) preparePartitions();
+        // a node costs its out- and in-links; aim at a few blocks per thread
+        long work = 2L * (offset[ownTo] - offset[ownFrom]) + (ownTo - ownFrom);
+        long perBlock = Math.max(1024, work / (8L * threads));
+        int[] starts = new int[ownTo - ownFrom + 2];
+        int blocks = 0;
+        long acc = perBlock;
+        for (int p = ownFrom; p < ownTo; p++) {
+            if (acc >= perBlock) {
+                starts[blocks++] = p;
+                acc = 0;
+            }
+            acc += 1 + (offset[p + 1] - offset[p]) + (inOffset[p + 1] - inOffset[p]);
+        }
+        starts[blocks] = ownTo;
+        blockStart = Arrays.copyOf(starts, blocks + 1);
+        int maxDegree = less.length;
+        syncScratch = ThreadLocal.withInitial(() -> new SyncScratch(maxDegree, counters));
+    }
+
+    private interface Phase {
+        void run(int from, int to);
+    }
+
+    private void inParallel(ForkJoinPool pool, Phase phase) {
+        int blocks = blockStart.length - 1;
+        if (threads == 1 || blocks == 1) {
+            phase.run(ownFrom, ownTo);
+            return;
+        }
+        pool.submit(() -> IntStream.range(0, blocks).parallel()
+                .forEach(b -> phase.run(blockStart[b], blockStart[b + 1]))).join();
+    }
+
+    /**
+     * Runs the controls due at or before <code>time</code>, by time and
+     * order, until one ends the run.
+     *
+     * @return true if a control ended the run
+     */
+    private boolean runControls(long time) {
+        while (true) {
+            int first = -1;
+            for (int i = 0; i < control.length; i++) {
+                long next = controlNext[i];
+                if (next >= 0 && next <= time && next < endTime
+                        && (first < 0 || next < controlNext[first])) first = i;
+            }
+            if (first < 0) return false;
+            CommonState.setTime(nextControlTime(first));
+            if (executeControl(first)) return true;
+        }
+    }
+
+    /**
+     * l5-l8, after collecting the deals of the previous round's proposals.
+     */
+    private void settle(int from, int to) {
+        int[] offset = graph.offset;
+        for (int p = from; p < to; p++) {
+            int gave = 0;
+            for (int k = offset[p]; k < offset[p + 1]; k++) {
+                gave += transfer[k];
+                transfer[k] = 0;
+            }
+            lastGaveLoad[p] += gave;
+            value[p] = value[p] + lastReceivedLoad[p] - lastGaveLoad[p];
+            lastReceivedLoad[p] = 0;
+            lastGaveLoad[p] = 0;
+            tLoad[p] = value[p];
+        }
+    }
+
+    /**
+     * l9-l19 of every node, leaving the proposals in the link slots.
+     */
+    private void propose(int from, int to) {
+        SyncScratch s = syncScratch.get();
+        int[] less = s.less;
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        for (int p = from; p < to; p++) {
+            int nLess = 0;
+            int min = -1;
+            for (int k = offset[p]; k < offset[p + 1]; k++) {
+                double qLoad = value[neighbor[k]];
+                if (qLoad < value[p]) {
+                    less[nLess++] = k;
+                    if (min < 0 || qLoad < value[neighbor[min]]) min = k;
+                }
+            }
+            if (nLess == 0) continue;
+            double minLoad = value[neighbor[min]];
+            int loadToTransfer = Math.max(0, (int) Math.ceil((tLoad[p] - minLoad) / 2));
+            double tentativeLoad = tLoad[p] - loadToTransfer;
+            int nPv = 0;
+            for (int k = 0; k < nLess; k++) {
+                if (value[neighbor[less[k]]] < tentativeLoad) less[nPv++] = less[k];
+            }
+            WaterFill wf = s.waterFill.ensure(nPv);
+            for (int k = 0; k < nPv; k++) wf.tLoad[k] = value[neighbor[less[k]]];
+            wf.allocate(nPv, tentativeLoad, loadToTransfer);
+            int nProposals = 0;
+            for (int k = 0; k < nPv; k++) {
+                transfer[less[k]] = wf.amount[k];
+                if (wf.amount[k] > 0) nProposals++;
+            }
+            tentative[p] = tentativeLoad;
+            if (s.counts != null) s.counts.proposals(nProposals, wf.unitSteps);
+        }
+    }
+
+    /**
+     * l24-l31 of every receiver, replacing each proposal by the deal.
+     */
+    private void answer(int from, int to) {
+        SelfCounters.Stripe counts = syncScratch.get().counts;
+        for (int q = from; q < to; q++) {
+            for (int j = inOffset[q]; j < inOffset[q + 1]; j++) {
+                int k = inLink[j];
+                int amount = transfer[k];
+                if (amount == 0) continue;
+                double tentativeLoad = tentative[inSource[j]];
+                int deal = 0;
+                if (tentativeLoad > value[q]) {
+                    deal = Math.min((int) (tentativeLoad - value[q]), amount);
+                    lastReceivedLoad[q] += deal;
+                    tLoad[q] += deal;
+                    if (counts != null) counts.accept(deal);
+                } else if (counts != null) {
+                    counts.reject();
+                }
+                // the proposer settles the deal at its next round
+                if (counts != null) counts.ack(step);
+                transfer[k] = deal;
+            }
+        }
+    }
+
+    private static final class SyncScratch {
+
+        final int[] less;
+        final WaterFill waterFill = new WaterFill();
+        final SelfCounters.Stripe counts; // null unless counting
+
+        SyncScratch(int maxDegree, SelfCounters counters) {
+            less = new int[maxDegree];
+            counts = counters.enabled ? counters.stripe() : null;
+        }
+    }
+
+    /**
+     * {@link SelfED#nextCycle}, in the form of its compact mode.
+     */
+    private void nextCycle(int p) {
+        // l5-l8
+        value[p] = value[p] + lastReceivedLoad[p] - lastGaveLoad[p];
+        lastReceivedLoad[p] = 0;
+        lastGaveLoad[p] = 0;
+        tLoad[p] = value[p];
+
+        int[] neighbor = graph.neighbor;
+        int from = graph.offset[p];
+        int degree = graph.offset[p + 1] - from;
+        if (degree == 0) return;
+
+        // l9-l13: V_less (CSR positions) and its first neighbor with the smallest load
+        int nLess = 0;
+        int min = -1;
+        for (int k = from; k < from + degree; k++) {
+            double qLoad = value[neighbor[k]];
+            if (qLoad < value[p]) {
+                less[nLess++] = k;
+                if (min < 0 || qLoad < value[neighbor[min]]) min = k;
+            }
+        }
+        if (nLess == 0) return;
+
+        // l14-15
+        double minLoad = value[neighbor[min]];
+        int loadToTransfer = Math.max(0, (int) Math.ceil((tLoad[p] - minLoad) / 2));
+        double tentativeLoad = tLoad[p] - loadToTransfer;
+
+        // l16-l18
+        int nPv = 0;
+        for (int k = 0; k < nLess; k++) {
+            if (value[neighbor[less[k]]] < tentativeLoad) less[nPv++] = less[k];
+        }
+
+        // l19: RRProposal
+        WaterFill wf = waterFill.ensure(nPv);
+        for (int k = 0; k < nPv; k++) wf.tLoad[k] = tLoad[neighbor[less[k]]];
+        wf.allocate(nPv, tentativeLoad, loadToTransfer);
+        int nProposals = 0;
+        for (int k = 0; k < nPv; k++) {
+            tLoad[neighbor[less[k]]] = wf.tLoad[k];
+            if (wf.amount[k] > 0) {
+                offer[less[k] - from] = wf.amount[k];
+                proposed[nProposals++] = less[k];
+            }
+        }
+
+        // l20-l23, in the order of the HashMap keyed by node (hash code = ID = index)
+        int[] order = hashOrder.order(neighbor, proposed, nProposals, wf.put ? 0 : wf.rrUnits);
+        for (int k = 0; k < nProposals; k++) {
+            int pos = order[k];
+            send(PROPOSAL, neighbor[pos], p, offer[pos - from], tentativeLoad, CommonState.getTime());
+        }
+        if (counters.enabled) counters.proposals(CommonState.getTime(), nProposals, wf.unitSteps);
+    }
+
+    /**
+     * {@link SelfED#processEvent} for a proposal.
+     */
+    private void proposal(int p, int sender, int loadToTransfer, double tentativeLoad, long proposedAt) {
+        if (tentativeLoad > value[p]) {
+            int deal = Math.min((int) (tentativeLoad - value[p]), loadToTransfer);
+            send(ACK, sender, p, deal, 0, proposedAt);
+            lastReceivedLoad[p] += deal;
+            tLoad[p] += deal;
+            if (counters.enabled) counters.accept(CommonState.getTime(), deal);
+        } else {
+            send(ACK, sender, p, 0, 0, proposedAt);
+            if (counters.enabled) counters.reject(CommonState.getTime());
+        }
+    }
+
+    /**
+     * UnreliableTransport over UniformRandomTransport.
+     *
+     * @param proposedAt time the proposal was sent, now for a proposal and
+     * that of the answered proposal for an Ack
+     */
+    private void send(int kind, int to, int from, int amount, double tentative, long proposedAt) {
+        if (unreliable && !(r.nextFloat() >= loss)) return;
+        long delay = delayRange == 1 ? minDelay : minDelay + r.nextLong(delayRange);
+        add(delay, kind, to, from, amount, tentative, proposedAt);
+    }
+
+    /**
+     * EDSimulator.add: events at or past the end time are dropped, the
+     * others get random priority bits.
+     */
+    private void add(long delay, int kind, int node, int sender, int amount, double tentative, long proposedAt) {
+        long time = CommonState.getTime();
+        if (endTime - time > delay) {
+            heap.add(time + delay, r.nextInt(1 << EventHeap.PBITS), kind, node, sender, amount, tentative,
+                    proposedAt);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: CsrSimulator <config file> [name=value ...]");
+            System.exit(1);
+        }
+        Configuration.setConfig(new ParsedProperties(args));
+        long seed = Configuration.getLong("random.seed", System.currentTimeMillis());
+        CommonState.initializeRandom(seed);
+        CsrSimulator simulator = new CsrSimulator();
+        simulator.commandLine = Arrays.copyOf(args, args.length + 1);
+        simulator.commandLine[args.length] = "random.seed=" + seed;
+        simulator.run();
+    }
+
+//--------------------------------------------------------------------------
+// partitions
+//--------------------------------------------------------------------------
+
+    private void startPartitions() {
+        try {
+            if (partition > 0) {
+                transport = PartitionTransport.worker(partition, partitions,
+                        Configuration.getInt("csr.partition.port"));
+            } else if (commandLine == null) {
+                throw new IllegalArgumentException("csr.partitions needs the command line of CsrSimulator.main");
+            } else {
+                transport = PartitionTransport.coordinator(partitions, commandLine);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot start partition " + partition + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Splits the nodes into ranges of about equal work, one per partition,
+     * lists what crosses between this partition and each other one, and
+     * connects to the others. Every process holds the whole graph, so both
+     * sides of a connection list the same nodes and links in the same
+     * order, and frames carry only the values.
+     */
+    private void preparePartitions() {
+        if (n < partitions) throw new IllegalArgumentException("csr.partitions is larger than the network");
+        int[] offset = graph.offset;
+        long work = 2L * graph.edges() + n;
+        partitionStart = new int[partitions + 1];
+        long acc = 0;
+        int next = 1;
+        for (int p = 0; p < n && next < partitions; p++) {
+            acc += 1 + (offset[p + 1] - offset[p]) + (inOffset[p + 1] - inOffset[p]);
+            while (next < partitions && acc * partitions >= work * next) partitionStart[next++] = p + 1;
+        }
+        partitionStart[partitions] = n;
+        ownFrom = partitionStart[partition];
+        ownTo = partitionStart[partition + 1];
+
+        ghostSend = new int[partitions][];
+        ghostReceive = new int[partitions][];
+        crossOut = new int[partitions][];
+        crossOutSource = new int[partitions][];
+        crossIn = new int[partitions][];
+        crossInSource = new int[partitions][];
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            int from = partitionStart[q];
+            int to = partitionStart[q + 1];
+            ghostSend[q] = targets(from, to, ownFrom, ownTo);
+            ghostReceive[q] = targets(ownFrom, ownTo, from, to);
+            int[][] out = links(ownFrom, ownTo, from, to);
+            crossOut[q] = out[0];
+            crossOutSource[q] = out[1];
+            int[][] in = links(from, to, ownFrom, ownTo);
+            crossIn[q] = in[0];
+            crossInSource[q] = in[1];
+        }
+        try {
+            transport.connect();
+        } catch (IOException e) {
+            throw new IllegalStateException("Partition " + partition + " cannot connect: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The nodes in [targetFrom, targetTo) linked from [from, to), sorted.
+     */
+    private int[] targets(int from, int to, int targetFrom, int targetTo) {
+        int[] neighbor = graph.neighbor;
+        IntStream.Builder targets = IntStream.builder();
+        for (int k = graph.offset[from]; k < graph.offset[to]; k++) {
+            int q = neighbor[k];
+            if (q >= targetFrom && q < targetTo) targets.add(q);
+        }
+        return targets.build().sorted().distinct().toArray();
+    }
+
+    /**
+     * The links from [from, to) to [targetFrom, targetTo) and their sources,
+     * by link.
+     */
+    private int[][] links(int from, int to, int targetFrom, int targetTo) {
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        IntStream.Builder links = IntStream.builder();
+        IntStream.Builder sources = IntStream.builder();
+        for (int p = from; p < to; p++) {
+            for (int k = offset[p]; k < offset[p + 1]; k++) {
+                if (neighbor[k] >= targetFrom && neighbor[k] < targetTo) {
+                    links.add(k);
+                    sources.add(p);
+                }
+            }
+        }
+        return new int[][]{links.build().toArray(), sources.build().toArray()};
+    }
+
+    /**
+     * {@link #runControls} in every partition, on the loads of all
+     * partitions gathered in partition 0, which tells the others whether a
+     * control ended the run.
+     */
+    private boolean controls(long time) throws IOException {
+        if (transport == null) return runControls(time);
+        boolean due = false;
+        for (int i = 0; i < control.length; i++) {
+            long next = controlNext[i];
+            if (next >= 0 && next <= time && next < endTime) due = true;
+        }
+        if (!due) return false;
+        gatherLoads();
+        boolean stop = runControls(time); // the other partitions only step the schedule
+        if (partition == 0) {
+            for (int q = 1; q < partitions; q++) transport.frame(q, 4).putInt(stop ? 1 : 0);
+        }
+        transport.exchange();
+        return partition == 0 ? stop : transport.received(0).getInt() != 0;
+    }
+
+    private void gatherLoads() throws IOException {
+        if (partition > 0) {
+            ByteBuffer frame = transport.frame(0, 8 * (ownTo - ownFrom));
+            for (int p = ownFrom; p < ownTo; p++) frame.putDouble(value[p]);
+        }
+        transport.exchange();
+        if (partition > 0) return;
+        for (int q = 1; q < partitions; q++) {
+            ByteBuffer frame = transport.received(q);
+            for (int p = partitionStart[q]; p < partitionStart[q + 1]; p++) value[p] = frame.getDouble();
+        }
+    }
+
+    /**
+     * After settle: the loads the other partitions' nodes compare with.
+     */
+    private void exchangeLoads() throws IOException {
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            ByteBuffer frame = transport.frame(q, 8 * ghostSend[q].length);
+            for (int p : ghostSend[q]) frame.putDouble(value[p]);
+        }
+        transport.exchange();
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            ByteBuffer frame = transport.received(q);
+            for (int p : ghostReceive[q]) value[p] = frame.getDouble();
+        }
+    }
+
+    /**
+     * After propose: the proposals on links to other partitions, with the
+     * tentative load of their sender.
+     */
+    private void exchangeProposals() throws IOException {
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            int[] links = crossOut[q];
+            ByteBuffer frame = transport.frame(q, 16 * links.length);
+            for (int t = 0; t < links.length; t++) {
+                int amount = transfer[links[t]];
+                if (amount == 0) continue;
+                frame.putInt(t);
+                frame.putInt(amount);
+                frame.putDouble(tentative[crossOutSource[q][t]]);
+            }
+        }
+        transport.exchange();
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            int[] links = crossIn[q];
+            for (int k : links) transfer[k] = 0; // the deals sent back last round
+            ByteBuffer frame = transport.received(q);
+            while (frame.hasRemaining()) {
+                int t = frame.getInt();
+                transfer[links[t]] = frame.getInt();
+                tentative[crossInSource[q][t]] = frame.getDouble();
+            }
+        }
+    }
+
+    /**
+     * After answer: the deals of the proposals from other partitions, which
+     * their senders settle in the next round.
+     */
+    private void exchangeDeals() throws IOException {
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            int[] links = crossIn[q];
+            ByteBuffer frame = transport.frame(q, 8 * links.length);
+            for (int t = 0; t < links.length; t++) {
+                int deal = transfer[links[t]];
+                if (deal == 0) continue;
+                frame.putInt(t);
+                frame.putInt(deal);
+            }
+        }
+        transport.exchange();
+        for (int q = 0; q < partitions; q++) {
+            if (q == partition) continue;
+            int[] links = crossOut[q];
+            for (int k : links) transfer[k] = 0; // proposals without a deal
+            ByteBuffer frame = transport.received(q);
+            while (frame.hasRemaining()) {
+                int t = frame.getInt();
+                transfer[links[t]] = frame.getInt();
+            }
+        }
+    }
+
+//--------------------------------------------------------------------------
+// actor mode
+//--------------------------------------------------------------------------
+
+    private void runActors() {
+        if (Configuration.contains("csr.threads")
+                && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(threads));
+        }
+        long cycleNanos = Configuration.getLong("csr.actor.cycle_ms", 100) * 1000000;
+        ActorNetwork network = new ActorNetwork(graph, value, firstCycle, step, cycleNanos,
+                unreliable ? loss : 0, minDelay, delayRange, counters);
+        double initial = 0;
+        for (int i = 0; i < n; i++) initial += value[i];
+        long start = System.nanoTime();
+        network.start();
+        boolean stop = false;
+        try {
+            for (long time = 0; time < endTime; time += step) {
+                network.sleepUntil(time);
+                network.loads(value);
+                if (counters.enabled) counters.at(time);
+                if (runControls(time)) {
+                    stop = true;
+                    System.err.printf("[Actors] converged: a control ended the run at time %d, %d ms after the start%n",
+                            CommonState.getTime(), (System.nanoTime() - start) / 1000000);
+                    break;
+                }
+                CommonState.setTime(time);
+                if (time >= nextLog) {
+                    System.err.println("Current time: " + time);
+                    do {
+                        nextLog += logTime;
+                    } while (time >= nextLog);
+                }
+                rounds++;
+            }
+            network.quiesce();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while the actors run", e);
+        }
+        runMillis = (System.nanoTime() - start) / 1000000;
+        network.loads(value);
+        if (!stop) runControls(endTime - 1);
+        finish();
+
+        double total = 0;
+        for (int i = 0; i < n; i++) total += value[i];
+        double expected = initial + network.lostDeals();
+        boolean conserved = Math.abs(total - expected) <= 1e-9 * Math.max(1, Math.abs(expected));
+        System.err.printf("[Actors] %d actors, %d cycles (%d skipped), %d messages (%d dropped) in %d ms, %.0f messages/s%n",
+                n, network.cycles(), network.skipped(), network.delivered(), network.dropped(), runMillis,
+                network.delivered() * 1000.0 / Math.max(1, runMillis));
+        System.err.printf("[Actors] total load %.2f at the start, %.2f at quiescence, %d added by dropped Acks: %s%n",
+                initial, total, network.lostDeals(), conserved ? "conserved" : "NOT conserved");
+        if (network.skipped() > 0) {
+            System.err.println("[Actors] the actors could not keep up with the cycle length, Acks arrive late;"
+                    + " raise csr.actor.cycle_ms");
+        }
+    }
+
+//--------------------------------------------------------------------------
+// data structures
+//--------------------------------------------------------------------------
+
+    /**
+     * The binary heap of PeerSim's event queue (same sift rules, so events
+     * with equal time and priority come out in the same order), with the
+     * event fields in pooled primitive slots. The key is the time shifted
+     * left by PBITS, or'ed with the priority.
+     */
+    private static final class EventHeap {
+
+        static final int PBITS = 8;
+
+        int size;
+        private long[] key = new long[1 << 10]; // 1-based
+        private int[] slot = new int[1 << 10];
+
+        // event slots
+        int[] kind = new int[1 << 10];
+        int[] node = new int[1 << 10];
+        int[] sender = new int[1 << 10];
+        int[] amount = new int[1 << 10];
+        double[] tentative = new double[1 << 10]; // of a proposal
+        long[] proposedAt = new long[1 << 10]; // of a proposal or of the one an Ack answers
+        private int[] free = new int[1 << 10];
+        private int nFree;
+        private int used;
+
+        void add(long time, long priority, int kind, int node, int sender, int amount, double tentative,
+                long proposedAt) {
+            if ((time >>> (63 - PBITS)) != 0) throw new IllegalArgumentException("Time overflow: time=" + time);
+            int e = allocate();
+            this.kind[e] = kind;
+            this.node[e] = node;
+            this.sender[e] = sender;
+            this.amount[e] = amount;
+            this.tentative[e] = tentative;
+            this.proposedAt[e] = proposedAt;
+            if (++size == key.length) {
+                key = Arrays.copyOf(key, 2 * key.length);
+                slot = Arrays.copyOf(slot, 2 * slot.length);
+            }
+            int pos = size;
+            key[pos] = (time << PBITS) | (priority & ((1 << PBITS) - 1));
+            slot[pos] = e;
+            while (pos > 1 && key[pos >> 1] > key[pos]) {
+                swap(pos, pos >> 1);
+                pos >>= 1;
+            }
+        }
+
+        long firstTime() {
+            return key[1] >> PBITS;
+        }
+
+        /**
+         * @return the slot of the first event, to {@link #release} once read
+         */
+        int removeFirst() {
+            int e = slot[1];
+            swap(1, size);
+            size--;
+            // min-heapify from the root
+            int index = 1;
+            int minIndex = 1;
+            do {
+                index = minIndex;
+                long minKey = key[index];
+                int l = index << 1;
+                int rt = l + 1;
+                if (l <= size && key[l] < minKey) {
+                    minIndex = l;
+                    minKey = key[l];
+                }
+                if (rt <= size && key[rt] < minKey) {
+                    minIndex = rt;
+                }
+                if (minIndex != index) swap(minIndex, index);
+            } while (minIndex != index);
+            return e;
+        }
+
+        void release(int e) {
+            free[nFree++] = e;
+        }
+
+        private int allocate() {
+            if (nFree > 0) return free[--nFree];
+            if (used == kind.length) {
+                int c = 2 * kind.length;
+                kind = Arrays.copyOf(kind, c);
+                node = Arrays.copyOf(node, c);
+                sender = Arrays.copyOf(sender, c);
+                amount = Arrays.copyOf(amount, c);
+                tentative = Arrays.copyOf(tentative, c);
+                proposedAt = Arrays.copyOf(proposedAt, c);
+                free = Arrays.copyOf(free, c);
+            }
+            return used++;
+        }
+
+        private void swap(int i, int j) {
+            long k = key[i];
+            key[i] = key[j];
+            key[j] = k;
+            int s = slot[i];
+            slot[i] = slot[j];
+            slot[j] = s;
+        }
+    }
+
+    /**
+     * The Graph the WireGraph initializers fill: links are collected as a
+     * list and turned into CSR at the end. Like OverlayGraph on IdleProtocol,
+     * an undirected link also adds the reverse one, and a link already
+     * present is not added again.
+     * <p>
+     * Most generators only call setEdge. The first query (isEdge, degree,
+     * getNeighbours, clearEdge) moves the links into a list per node, which
+     * the following links are added to directly; setEdge then also reports
+     * whether the link was new, as OverlayGraph does.
+     */
+    private static final class EdgeList implements Graph {
+
+        private final int n;
+        boolean undirected;
+        private int[] src = new int[1 << 12];
+        private int[] dst = new int[1 << 12];
+        private int m;
+        private CsrGraph base; // see add
+        private int[][] adj; // per node lists once queried, see index
+        private int[] deg;
+
+        EdgeList(int n) {
+            this.n = n;
+        }
+
+        public boolean setEdge(int i, int j) {
+            if (undirected) append(j, i);
+            return append(i, j);
+        }
+
+        /**
+         * @return false if the link is known to be there already
+         */
+        private boolean append(int i, int j) {
+            if (adj != null) return link(i, j);
+            if (base != null) {
+                CsrGraph links = base;
+                base = null;
+                copy(links);
+            }
+            if (m == src.length) {
+                if (m == Integer.MAX_VALUE - 8) throw new IllegalStateException("Too many links");
+                int c = (int) Math.min(Integer.MAX_VALUE - 8, 2L * m);
+                src = Arrays.copyOf(src, c);
+                dst = Arrays.copyOf(dst, c);
+            }
+            src[m] = i;
+            dst[m++] = j;
+            return true;
+        }
+
+        /**
+         * Adds the links of <code>graph</code> as they are, without the
+         * reverse ones.
+         */
+        void add(CsrGraph graph) {
+            if (m == 0 && base == null && adj == null) {
+                base = graph; // taken as it is if no other links follow
+                return;
+            }
+            copy(graph);
+        }
+
+        private void copy(CsrGraph graph) {
+            for (int i = 0; i < graph.size(); i++) {
+                for (int k = 0; k < graph.degree(i); k++) append(i, graph.neighbor(i, k));
+            }
+        }
+
+        CsrGraph toCsr() {
+            long[] id = new long[n];
+            for (int i = 0; i < n; i++) id[i] = i; // GeneralNode IDs follow the creation order
+            if (base != null) return new CsrGraph(id, base.offset, base.neighbor);
+            if (adj != null) {
+                int[] offset = new int[n + 1];
+                for (int i = 0; i < n; i++) offset[i + 1] = offset[i] + deg[i];
+                int[] neighbor = new int[offset[n]];
+                for (int i = 0; i < n; i++) {
+                    if (deg[i] > 0) System.arraycopy(adj[i], 0, neighbor, offset[i], deg[i]);
+                }
+                adj = null;
+                deg = null;
+                return new CsrGraph(id, offset, neighbor);
+            }
+            int[] offset = new int[n + 1];
+            for (int k = 0; k < m; k++) offset[src[k] + 1]++;
+            for (int i = 0; i < n; i++) offset[i + 1] += offset[i];
+            // stable by source, so every node keeps the order its links were added in
+            int[] sorted = new int[m];
+            int[] fill = Arrays.copyOf(offset, n);
+            for (int k = 0; k < m; k++) sorted[fill[src[k]]++] = dst[k];
+            src = null;
+            dst = null;
+            // drop repeated links, keeping the first
+            int[] mark = fill;
+            Arrays.fill(mark, -1);
+            int out = 0;
+            for (int i = 0, k = 0; i < n; i++) {
+                int end = offset[i + 1];
+                offset[i] = out;
+                for (; k < end; k++) {
+                    int j = sorted[k];
+                    if (mark[j] != i) {
+                        mark[j] = i;
+                        sorted[out++] = j;
+                    }
+                }
+            }
+            offset[n] = out;
+            return new CsrGraph(id, offset, out == m ? sorted : Arrays.copyOf(sorted, out));
+        }
+
+        /**
+         * Moves the links collected so far into per node lists, in the order
+         * they were added and without repeated ones, as toCsr would.
+         */
+        private void index() {
+            if (adj != null) return;
+            CsrGraph links = toCsr();
+            adj = new int[n][];
+            deg = new int[n];
+            for (int i = 0; i < n; i++) {
+                deg[i] = links.degree(i);
+                adj[i] = Arrays.copyOfRange(links.neighbor, links.offset[i], links.offset[i + 1]);
+            }
+            base = null;
+            m = 0;
+        }
+
+        private boolean link(int i, int j) {
+            if (find(i, j) >= 0) return false;
+            if (deg[i] == adj[i].length) adj[i] = Arrays.copyOf(adj[i], Math.max(4, 2 * deg[i]));
+            adj[i][deg[i]++] = j;
+            return true;
+        }
+
+        private int find(int i, int j) {
+            int[] links = adj[i];
+            for (int k = 0; k < deg[i]; k++) {
+                if (links[k] == j) return k;
+            }
+            return -1;
+        }
+
+        private boolean unlink(int i, int j) {
+            int k = find(i, j);
+            if (k < 0) return false;
+            System.arraycopy(adj[i], k + 1, adj[i], k, --deg[i] - k);
+            return true;
+        }
+
+        public int size() {
+            return n;
+        }
+
+        public boolean directed() {
+            return !undirected;
+        }
+
+        public boolean isEdge(int i, int j) {
+            index();
+            return find(i, j) >= 0;
+        }
+
+        public Collection<Integer> getNeighbours(int i) {
+            index();
+            List<Integer> neighbours = new ArrayList<>(deg[i]);
+            for (int k = 0; k < deg[i]; k++) neighbours.add(adj[i][k]);
+            return Collections.unmodifiableList(neighbours);
+        }
+
+        public Object getNode(int i) {
+            return i;
+        }
+
+        public Object getEdge(int i, int j) {
+            return null;
+        }
+
+        /**
+         * Removes the link, and the reverse one if undirected. (OverlayGraph
+         * does not support this.)
+         */
+        public boolean clearEdge(int i, int j) {
+            index();
+            boolean removed = unlink(i, j);
+            if (undirected) removed |= unlink(j, i);
+            return removed;
+        }
+
+        public int degree(int i) {
+            index();
+            return deg[i];
+        }
+    }
+}
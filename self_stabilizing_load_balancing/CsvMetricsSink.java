@@ -0,0 +1,148 @@
+package self_stabilizing_load_balancing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * CSV output of {@link MSEObserver}. Rows are formatted into a byte buffer
+ * and written when <code>flushRows</code> rows are buffered, when the oldest
+ * buffered row is <code>flushMillis</code> old, and on close. The text is
+ * the same as <code>String.format("%.Nf")</code> produced, without going
+ * through a Formatter for every value.
+ */
+public class CsvMetricsSink implements MetricsSink {
+
+    private static final double[] POW10 = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // the fast path writes '.' and ASCII digits, which is what %f gives in most locales
+    private static final boolean FAST = isPlainLocale();
+
+    private final FileChannel channel;
+    private final int[] decimals;
+    private final int flushRows;
+    private final long flushMillis;
+    private ByteBuffer buf;
+    private int buffered;
+    private long firstBuffered;
+
+    public CsvMetricsSink(String filename, String[] columns, int[] decimals, int flushRows, long flushMillis)
+            throws IOException {
+        this.decimals = decimals.clone();
+        this.flushRows = Math.max(1, flushRows);
+        this.flushMillis = flushMillis;
+        this.buf = ByteBuffer.allocate(Math.max(256, Math.min(flushRows, 1 << 16) * 16 * columns.length));
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        put(String.join(",", columns) + "\n");
+        write();
+    }
+
+    public void row(long cycle, double[] values) throws IOException {
+        ensure(24 * (values.length + 1) + NEWLINE.length);
+        appendLong(cycle);
+        for (int i = 0; i < values.length; i++) {
+            buf.put((byte) ',');
+            appendFixed(values[i], decimals[i]);
+        }
+        buf.put(NEWLINE);
+        if (buffered++ == 0) firstBuffered = System.currentTimeMillis();
+        if (buffered >= flushRows || System.currentTimeMillis() - firstBuffered >= flushMillis) {
+            write();
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            write();
+            channel.close();
+        }
+    }
+
+    private void write() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+        buffered = 0;
+    }
+
+    private void ensure(int bytes) {
+        if (buf.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(2 * buf.capacity() + bytes);
+            buf.flip();
+            buf = bigger.put(buf);
+        }
+    }
+
+    private void put(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length);
+        buf.put(bytes);
+    }
+
+    private void appendLong(long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                put(Long.toString(v));
+                return;
+            }
+            buf.put((byte) '-');
+            v = -v;
+        }
+        int start = buf.position();
+        do {
+            buf.put((byte) ('0' + v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits were written backwards
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte t = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, t);
+        }
+    }
+
+    /**
+     * Appends <code>v</code> with <code>d</code> decimals as <code>%.df</code>
+     * would. Formatter rounds half up on the shortest decimal representation
+     * rather than on the exact binary value; the two only disagree when the
+     * scaled value lies within a few ulps of a rounding boundary, and those
+     * (rare) values go through String.format.
+     */
+    private void appendFixed(double v, int d) {
+        if (FAST && d < POW10.length && !Double.isNaN(v) && !Double.isInfinite(v)) {
+            double r = Math.abs(v) * POW10[d];
+            if (r < 0x1p52) {
+                long ip = (long) r;
+                double frac = r - ip;
+                if (Math.abs(frac - 0.5) > 4 * Math.ulp(r)) {
+                    long q = frac > 0.5 ? ip + 1 : ip;
+                    if (v < 0 || (v == 0 && 1 / v < 0)) buf.put((byte) '-');
+                    long pow = (long) POW10[d];
+                    appendLong(q / pow);
+                    if (d > 0) {
+                        buf.put((byte) '.');
+                        long f = q % pow;
+                        for (long p = pow / 10; p > 0; p /= 10) {
+                            buf.put((byte) ('0' + f / p));
+                            f %= p;
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+        put(String.format("%." + d + "f", v));
+    }
+
+    private static boolean isPlainLocale() {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        return symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0'
+                && symbols.getMinusSign() == '-';
+    }
+}
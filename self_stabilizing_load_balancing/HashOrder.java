@@ -0,0 +1,181 @@
+package self_stabilizing_load_balancing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The order in which a <code>HashMap</code> iterates entries, computed
+ * without building the map. {@link SelfED} sends its proposals in the
+ * iteration order of a <code>HashMap&lt;Node,Integer&gt;</code>, which
+ * decides the order of the random draws of the transport; compact mode and
+ * {@link CsrSimulator} use this to keep the same order.
+ * <p>
+ * Keys are given by their <code>hashCode()</code>, which must be distinct
+ * (true for GeneralNode, whose hash code is its ID).
+ * <p>
+ * The iteration order is not part of the HashMap contract: this follows the
+ * OpenJDK implementation since Java 8 (hash spreading, power of two tables,
+ * load factor 0.75, treeify threshold 8, lazy resize in merge). Another
+ * implementation may differ, so {@link #MATCHES} compares it with the real
+ * HashMap once, and without a match compact mode is off and CsrSimulator
+ * warns that its send order differs from PeerSim's.
+ */
+final class HashOrder {
+
+    /** Whether the orders computed here are those of this JDK's HashMap. */
+    static final boolean MATCHES = selfCheck();
+
+    private int[] order = new int[0];
+    private int[] buckets = new int[0];
+
+    /**
+     * Orders the positions in <code>pos</code> the way a HashMap filled in
+     * that order iterates, if the key at position i has hash code
+     * <code>hash[i]</code>. The order is by bucket, and within a bucket by
+     * insertion order for <code>put</code> (which appends) or reversed for
+     * <code>merge</code> (which prepends). The table growth of both calls is
+     * replayed: put resizes after adding, merge before every call, even for
+     * a key already present, and both resize a small table instead of
+     * treeifying a bucket. A bucket that really becomes a tree falls back to
+     * a real HashMap.
+     *
+     * @param merges number of <code>merge</code> calls that built the map,
+     * 0 if the entries were added by <code>put</code>
+     * @return the ordered positions, valid until the next call
+     */
+    int[] order(int[] hash, int[] pos, int n, int merges) {
+        if (order.length < n) order = new int[Math.max(n, 2 * order.length)];
+        boolean merged = merges > 0;
+        int c = 16;
+        if (n > 7) { // otherwise no bucket reaches the treeify threshold
+            for (int i = 0, cap = 0; i < n; i++) {
+                if (merged && i > (c >> 1) + (c >> 2)) c <<= 1;
+                if (c != cap) {
+                    cap = c;
+                    count(hash, pos, i, cap);
+                }
+                if (buckets[bucket(hash[pos[i]], cap)]++ >= (merged ? 7 : 8)) {
+                    if (cap >= 64) return replay(hash, pos, n, merges);
+                    c = cap << 1;
+                }
+                if (!merged && i + 1 > (c >> 1) + (c >> 2)) c <<= 1;
+            }
+        }
+        for (int k = n; k < merges && n > (c >> 1) + (c >> 2); k++) c <<= 1;
+        int cap = c;
+        // stable counting sort by bucket
+        count(hash, pos, n, cap);
+        for (int b = 0, start = 0; b < cap; b++) {
+            start += buckets[b];
+            buckets[b] = merged ? start : start - buckets[b];
+        }
+        if (merged) {
+            for (int i = 0; i < n; i++) order[--buckets[bucket(hash[pos[i]], cap)]] = pos[i];
+        } else {
+            for (int i = 0; i < n; i++) order[buckets[bucket(hash[pos[i]], cap)]++] = pos[i];
+        }
+        return order;
+    }
+
+    private void count(int[] hash, int[] pos, int n, int cap) {
+        if (buckets.length < cap) buckets = new int[cap];
+        Arrays.fill(buckets, 0, cap, 0);
+        for (int i = 0; i < n; i++) buckets[bucket(hash[pos[i]], cap)]++;
+    }
+
+    private static int bucket(int h, int cap) {
+        return (h ^ (h >>> 16)) & (cap - 1);
+    }
+
+    /**
+     * Compares {@link #order} with a real HashMap over random and colliding
+     * hash codes, for every degree up to 64 and a few larger ones, filled by
+     * put and by merge with extra calls for units beyond one per key (both
+     * all of them and the single one {@link SelfED#RRProposal} makes).
+     */
+    private static boolean selfCheck() {
+        HashOrder hashOrder = new HashOrder();
+        Random r = new Random(1);
+        for (int n = 1; n <= 256; n = n < 64 ? n + 1 : 2 * n) {
+            for (int spread : new int[]{1 << 20, 64, 1}) {
+                Key[] keys = new Key[n];
+                int[] hash = new int[n];
+                int[] pos = new int[n];
+                for (int i = 0; i < n; i++) {
+                    int h;
+                    do {
+                        h = spread == 1 ? i << 20 : r.nextInt(spread * n); // i << 20: the same low bits
+                    } while (contains(hash, i, h));
+                    hash[i] = h;
+                    keys[i] = new Key(h);
+                    pos[i] = n - 1 - i;
+                }
+                for (int merges : new int[]{0, n, n + 1, 3 * n}) {
+                    if (!same(hashOrder.order(hash, pos, n, merges), build(keys, pos, n, merges, false))) return false;
+                    if (merges > n && !same(hashOrder.order(hash, pos, n, merges), build(keys, pos, n, merges, true))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] a, int n, int v) {
+        for (int i = 0; i < n; i++) {
+            if (a[i] == v) return true;
+        }
+        return false;
+    }
+
+    private static Map<Key, Integer> build(Key[] keys, int[] pos, int n, int merges, boolean once) {
+        Map<Key, Integer> map = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (merges > 0) map.merge(keys[pos[i]], pos[i], (a, b) -> a);
+            else map.put(keys[pos[i]], pos[i]);
+        }
+        int calls = once ? Math.min(merges, n + 1) : merges;
+        for (int k = n; k < calls; k++) map.merge(keys[pos[0]], pos[0], (a, b) -> a);
+        return map;
+    }
+
+    private static boolean same(int[] order, Map<Key, Integer> map) {
+        int k = 0;
+        for (int p : map.values()) {
+            if (order[k++] != p) return false;
+        }
+        return true;
+    }
+
+    /** A key with a given hash code and identity equality, like GeneralNode. */
+    private static final class Key {
+        private final int hash;
+
+        Key(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Tree bins compare distinct keys by hash first, so Integer keys with the
+     * same hash codes iterate like the original keys.
+     */
+    private int[] replay(int[] hash, int[] pos, int n, int merges) {
+        Map<Integer, Integer> map = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (merges > 0) map.merge(hash[pos[i]], pos[i], (a, b) -> a);
+            else map.put(hash[pos[i]], pos[i]);
+        }
+        for (int k = n; k < merges; k++) map.merge(hash[pos[0]], pos[0], (a, b) -> a);
+        int k = 0;
+        for (int p : map.values()) order[k++] = p;
+        return order;
+    }
+}
@@ -0,0 +1,400 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.FastConfig;
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.core.Node;
+
+import java.util.Arrays;
+
+/**
+ * The statistics {@link MSEObserver} reports on the {@link SelfED} loads:
+ * MSE, mean, min, max and the maximum load difference between neighbors.
+ * <p>
+ * A full pass computes all of them in a single allocation-free walk over the
+ * network. The MSE is accumulated around a shift (the mean of the previous
+ * pass; the total load is conserved, so this stays close to the mean), which
+ * avoids a second pass without the cancellation of a plain sum of squares.
+ * <p>
+ * In incremental mode SelfED reports every change of a node's value through
+ * {@link #valueChanged}, which updates the sums in O(1). An observation then
+ * only updates the min/max trees and the per-node neighbor discrepancies of
+ * the changed nodes and their in-neighbors, so once the system is close to
+ * converged it costs next to nothing. A full pass is redone every
+ * <code>rebuild</code> observations to drop accumulated rounding.
+ * <p>
+ * With <code>vector</code> a full pass takes the sums, min and max in SIMD
+ * lanes (<code>VectorLoadPass</code>, built from <code>vector/</code> and
+ * loaded by name) if the JVM has the jdk.incubator.vector module, and the
+ * discrepancy in a loop of its own over the links.
+ * On the network the loads are first copied into an array and the links
+ * are read into a {@link CsrGraph}, again every <code>rebuild</code>
+ * observations.
+ */
+public final class LoadMetrics {
+
+    /** Incremental trackers by protocol id, fed by {@link #valueChanged}. */
+    private static LoadMetrics[] trackers = new LoadMetrics[0];
+
+    private final int pid;
+    private final boolean incremental;
+    private final int rebuild;
+    private final ArrayPass vector; // null for the scalar loop
+
+    // results of the last observation
+    double mse;
+    double avg;
+    double min;
+    double max;
+    double discrepancy;
+
+    private int n = -1; // network size of the last full pass
+    private double shift;
+    private double sum; // of the values
+    private double sumSq; // of (value - shift)^2
+    private int observations;
+
+    // incremental state, indexed by Network index
+    private double[] seen; // value at the last observation
+    private double[] minTree, maxTree, diffTree; // segment trees, leaves at [leaves, 2 * leaves)
+    private int leaves;
+    private int[] inOffset, inNeighbor; // reverse adjacency
+    private int[] changed; // nodes changed since the last observation
+    private int nChanged;
+    private boolean[] isChanged;
+    private int[] rescan;
+    private boolean[] isRescan;
+
+    // loads and links of the network for the vector pass
+    private double[] loads;
+    private CsrGraph links;
+
+    /**
+     * @param incremental whether to track changes reported by SelfED
+     * @param rebuild observations between full passes in incremental mode
+     */
+    public LoadMetrics(int pid, boolean incremental, int rebuild) {
+        this(pid, incremental, rebuild, false);
+    }
+
+    /**
+     * @param vector whether to compute full passes with the Vector API, if
+     * the JVM has it
+     */
+    public LoadMetrics(int pid, boolean incremental, int rebuild, boolean vector) {
+        this.pid = pid;
+        this.incremental = incremental;
+        this.rebuild = Math.max(1, rebuild);
+        if (incremental) register(pid, this);
+        this.vector = vector ? vectorPass() : null;
+    }
+
+    /**
+     * The sums, min and max of a full pass over loads in an array.
+     */
+    abstract static class ArrayPass {
+        double sum;
+        double sumSq; // of (value - shift)^2
+        double min;
+        double max;
+
+        /**
+         * Over the first <code>n</code> loads.
+         */
+        abstract void pass(double[] values, int n, double shift);
+    }
+
+    /**
+     * VectorLoadPass, which is compiled separately so that the rest builds
+     * without the incubator module.
+     *
+     * @return null, after saying why, if the JVM lacks the module or the class
+     */
+    private static ArrayPass vectorPass() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            System.err.println("LoadMetrics: the Vector API is not available (--add-modules jdk.incubator.vector),"
+                    + " computing without it");
+            return null;
+        }
+        try {
+            return (ArrayPass) Class.forName(LoadMetrics.class.getPackageName() + ".VectorLoadPass")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("LoadMetrics: VectorLoadPass is not on the class path (compile vector/ with"
+                    + " --add-modules jdk.incubator.vector), computing without it");
+            return null;
+        }
+    }
+
+    /**
+     * Whether full passes use the Vector API.
+     */
+    boolean vectorized() {
+        return vector != null;
+    }
+
+    private static synchronized void register(int pid, LoadMetrics metrics) {
+        if (trackers.length <= pid) trackers = Arrays.copyOf(trackers, pid + 1);
+        trackers[pid] = metrics;
+    }
+
+    /**
+     * Called by {@link SelfED} when the value of a node changes. Does nothing
+     * unless an incremental observer watches the protocol.
+     */
+    static void valueChanged(int pid, Node node, double oldValue, double newValue) {
+        LoadMetrics[] t = trackers;
+        if (pid < t.length && t[pid] != null) t[pid].changed(node.getIndex(), oldValue, newValue);
+    }
+
+    private void changed(int i, double oldValue, double newValue) {
+        if (i >= n) return; // not seen by a full pass yet
+        sum += newValue - oldValue;
+        double o = oldValue - shift;
+        double v = newValue - shift;
+        sumSq += v * v - o * o;
+        if (!isChanged[i]) {
+            isChanged[i] = true;
+            changed[nChanged++] = i;
+        }
+    }
+
+    /**
+     * Updates the statistics to the current loads.
+     */
+    public void observe() {
+        if (!incremental) {
+            if (vector != null) arrayPass();
+            else fullPass();
+        } else if (n != Network.size() || observations % rebuild == 0) {
+            fullPass();
+            buildIncremental();
+        } else {
+            update();
+        }
+        finish();
+    }
+
+    /**
+     * Same as a full pass of {@link #observe()}, on loads held in an array
+     * indexed like the nodes of <code>graph</code> ({@link CsrSimulator}).
+     */
+    void observe(double[] values, CsrGraph graph) {
+        n = graph.size();
+        shift = observations == 0 && n > 0 ? values[0] : avg;
+        if (vector != null) {
+            vectorPass(values, graph);
+            finish();
+            return;
+        }
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        double s = 0, sq = 0, lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE, disc = 0;
+        for (int i = 0; i < n; i++) {
+            double v = values[i];
+            s += v;
+            double d = v - shift;
+            sq += d * d;
+            if (v < lo) lo = v;
+            if (v > hi) hi = v;
+            for (int k = offset[i + 1] - 1; k >= offset[i]; k--) {
+                double diff = Math.abs(v - values[neighbor[k]]);
+                if (diff > disc) disc = diff;
+            }
+        }
+        sum = s;
+        sumSq = sq;
+        min = lo;
+        max = hi;
+        discrepancy = disc;
+        finish();
+    }
+
+    private void finish() {
+        observations++;
+        avg = sum / n;
+        double d = avg - shift;
+        mse = Math.max(0, sumSq / n - d * d);
+    }
+
+//--------------------------------------------------------------------------
+// full pass
+//--------------------------------------------------------------------------
+
+    private void fullPass() {
+        n = Network.size();
+        shift = observations == 0 && n > 0 ? value(Network.get(0)) : avg;
+        int lid = FastConfig.getLinkable(pid);
+        double s = 0, sq = 0, lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE, disc = 0;
+        for (int i = 0; i < n; i++) {
+            Node node = Network.get(i);
+            double v = value(node);
+            s += v;
+            double d = v - shift;
+            sq += d * d;
+            if (v < lo) lo = v;
+            if (v > hi) hi = v;
+            double nd = neighborDiff(node, v, lid);
+            if (nd > disc) disc = nd;
+        }
+        sum = s;
+        sumSq = sq;
+        min = lo;
+        max = hi;
+        discrepancy = disc;
+    }
+
+    /**
+     * A full pass of the vector backend over a copy of the loads.
+     */
+    private void arrayPass() {
+        n = Network.size();
+        if (links == null || links.size() != n || observations % rebuild == 0) {
+            links = CsrGraph.fromNetwork(FastConfig.getLinkable(pid));
+        }
+        if (loads == null || loads.length != n) loads = new double[n];
+        for (int i = 0; i < n; i++) loads[i] = value(Network.get(i));
+        shift = observations == 0 && n > 0 ? loads[0] : avg;
+        vectorPass(loads, links);
+    }
+
+    private void vectorPass(double[] values, CsrGraph graph) {
+        vector.pass(values, n, shift);
+        sum = vector.sum;
+        sumSq = vector.sumSq;
+        min = vector.min;
+        max = vector.max;
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        double disc = 0;
+        for (int i = 0; i < n; i++) {
+            double v = values[i];
+            for (int k = offset[i + 1] - 1; k >= offset[i]; k--) {
+                double diff = Math.abs(v - values[neighbor[k]]);
+                if (diff > disc) disc = diff;
+            }
+        }
+        discrepancy = disc;
+    }
+
+    private double neighborDiff(Node node, double v, int lid) {
+        Linkable linkable = (Linkable) node.getProtocol(lid);
+        double maxDiff = 0;
+        for (int k = linkable.degree() - 1; k >= 0; k--) {
+            double diff = Math.abs(v - value(linkable.getNeighbor(k)));
+            if (diff > maxDiff) maxDiff = diff;
+        }
+        return maxDiff;
+    }
+
+    private double value(Node node) {
+        return ((SelfED) node.getProtocol(pid)).getValue();
+    }
+
+//--------------------------------------------------------------------------
+// incremental mode
+//--------------------------------------------------------------------------
+
+    private void buildIncremental() {
+        int lid = FastConfig.getLinkable(pid);
+        if (seen == null || seen.length < n) {
+            seen = new double[n];
+            changed = new int[n];
+            isChanged = new boolean[n];
+            rescan = new int[n];
+            isRescan = new boolean[n];
+            leaves = Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+            minTree = new double[2 * leaves];
+            maxTree = new double[2 * leaves];
+            diffTree = new double[2 * leaves];
+            inOffset = new int[n + 1];
+        }
+        Arrays.fill(isChanged, 0, n, false);
+        nChanged = 0;
+
+        // reverse adjacency
+        Arrays.fill(inOffset, 0);
+        for (int i = 0; i < n; i++) {
+            Linkable linkable = (Linkable) Network.get(i).getProtocol(lid);
+            for (int k = 0; k < linkable.degree(); k++) inOffset[linkable.getNeighbor(k).getIndex() + 1]++;
+        }
+        for (int i = 0; i < n; i++) inOffset[i + 1] += inOffset[i];
+        if (inNeighbor == null || inNeighbor.length < inOffset[n]) inNeighbor = new int[inOffset[n]];
+        int[] fill = rescan; // scratch, reset below
+        System.arraycopy(inOffset, 0, fill, 0, n);
+        for (int i = 0; i < n; i++) {
+            Linkable linkable = (Linkable) Network.get(i).getProtocol(lid);
+            for (int k = 0; k < linkable.degree(); k++) inNeighbor[fill[linkable.getNeighbor(k).getIndex()]++] = i;
+        }
+
+        Arrays.fill(minTree, Double.MAX_VALUE);
+        Arrays.fill(maxTree, -Double.MAX_VALUE);
+        Arrays.fill(diffTree, 0);
+        for (int i = 0; i < n; i++) {
+            Node node = Network.get(i);
+            double v = value(node);
+            seen[i] = v;
+            minTree[leaves + i] = v;
+            maxTree[leaves + i] = v;
+            diffTree[leaves + i] = neighborDiff(node, v, lid);
+        }
+        for (int p = leaves - 1; p > 0; p--) {
+            minTree[p] = Math.min(minTree[2 * p], minTree[2 * p + 1]);
+            maxTree[p] = Math.max(maxTree[2 * p], maxTree[2 * p + 1]);
+            diffTree[p] = Math.max(diffTree[2 * p], diffTree[2 * p + 1]);
+        }
+    }
+
+    private void update() {
+        int lid = FastConfig.getLinkable(pid);
+        int nRescan = 0;
+        for (int c = 0; c < nChanged; c++) {
+            int j = changed[c];
+            double v = value(Network.get(j));
+            setLeaf(minTree, j, v, true);
+            setLeaf(maxTree, j, v, false);
+            if (!isRescan[j]) {
+                isRescan[j] = true;
+                rescan[nRescan++] = j;
+            }
+            // in-neighbors that did not change themselves: their largest
+            // difference can only grow to the new one, or shrink if it was j's
+            for (int k = inOffset[j]; k < inOffset[j + 1]; k++) {
+                int i = inNeighbor[k];
+                if (isChanged[i] || isRescan[i]) continue;
+                double current = diffTree[leaves + i];
+                double now = Math.abs(seen[i] - v);
+                if (now > current) {
+                    setLeaf(diffTree, i, now, false);
+                } else if (Math.abs(seen[i] - seen[j]) == current) {
+                    isRescan[i] = true;
+                    rescan[nRescan++] = i;
+                }
+            }
+        }
+        for (int c = 0; c < nChanged; c++) {
+            int j = changed[c];
+            seen[j] = value(Network.get(j));
+            isChanged[j] = false;
+        }
+        nChanged = 0;
+        for (int r = 0; r < nRescan; r++) {
+            int i = rescan[r];
+            isRescan[i] = false;
+            setLeaf(diffTree, i, neighborDiff(Network.get(i), seen[i], lid), false);
+        }
+        min = minTree[1];
+        max = maxTree[1];
+        discrepancy = diffTree[1];
+    }
+
+    private void setLeaf(double[] tree, int i, double v, boolean isMin) {
+        int p = leaves + i;
+        tree[p] = v;
+        for (p >>= 1; p > 0; p >>= 1) {
+            double m = isMin ? Math.min(tree[2 * p], tree[2 * p + 1]) : Math.max(tree[2 * p], tree[2 * p + 1]);
+            if (tree[p] == m) break;
+            tree[p] = m;
+        }
+    }
+}
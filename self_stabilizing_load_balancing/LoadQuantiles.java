@@ -0,0 +1,109 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.FastConfig;
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.core.Node;
+
+import java.util.SplittableRandom;
+
+/**
+ * Quantiles of the node loads and of the load differences across links,
+ * for {@link MSEObserver}: p50, p90, p99 and p99.9 from a {@link TDigest}
+ * of each, refilled at every observation in O(n + m) time and bounded
+ * memory.
+ * <p>
+ * Parameters, under the observer prefix:
+ * <ul>
+ * <li><code>quantiles</code>: add the columns, default false</li>
+ * <li><code>quantiles.compression</code>: of the digests, default 1000
+ * (rank error around 1e-5 at p99.9)</li>
+ * <li><code>quantiles.sample</code>: if above 0, the quantiles are taken
+ * over that many nodes drawn at random (with replacement) and their links
+ * instead of the whole network; the other statistics stay exact</li>
+ * </ul>
+ * Samples are drawn from a generator of their own, seeded from
+ * <code>random.seed</code>, so observing does not change the run.
+ */
+final class LoadQuantiles {
+
+    static final double[] LEVELS = {0.5, 0.9, 0.99, 0.999};
+    static final String[] NAMES = {"P50", "P90", "P99", "P99.9"};
+
+    private final int pid;
+    private final int sample;
+    private final SplittableRandom random;
+    private final TDigest loads;
+    private final TDigest diffs;
+
+    // results of the last observation, by LEVELS
+    final double[] load = new double[LEVELS.length];
+    final double[] diff = new double[LEVELS.length];
+
+    /**
+     * @return null unless <code>prefix.quantiles</code> is set
+     */
+    static LoadQuantiles create(String prefix, int pid) {
+        if (!Configuration.getBoolean(prefix + ".quantiles", false)) return null;
+        return new LoadQuantiles(prefix, pid);
+    }
+
+    private LoadQuantiles(String prefix, int pid) {
+        this.pid = pid;
+        this.sample = Configuration.getInt(prefix + ".quantiles.sample", 0);
+        this.random = new SplittableRandom(Configuration.getLong("random.seed", 0) ^ 0x9E3779B97F4A7C15L);
+        double compression = Configuration.getDouble(prefix + ".quantiles.compression", 1000);
+        this.loads = new TDigest(compression);
+        this.diffs = new TDigest(compression);
+    }
+
+    void observe() {
+        loads.reset();
+        diffs.reset();
+        int n = Network.size();
+        int lid = FastConfig.getLinkable(pid);
+        int count = sample > 0 ? sample : n;
+        for (int s = 0; s < count && n > 0; s++) {
+            Node node = Network.get(sample > 0 ? random.nextInt(n) : s);
+            double v = value(node);
+            loads.add(v);
+            Linkable linkable = (Linkable) node.getProtocol(lid);
+            for (int k = linkable.degree() - 1; k >= 0; k--) {
+                diffs.add(Math.abs(v - value(linkable.getNeighbor(k))));
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Same as {@link #observe()}, on loads held in an array indexed like
+     * the nodes of <code>graph</code> ({@link CsrSimulator}).
+     */
+    void observe(double[] values, CsrGraph graph) {
+        loads.reset();
+        diffs.reset();
+        int n = graph.size();
+        int[] offset = graph.offset;
+        int[] neighbor = graph.neighbor;
+        int count = sample > 0 ? sample : n;
+        for (int s = 0; s < count && n > 0; s++) {
+            int i = sample > 0 ? random.nextInt(n) : s;
+            double v = values[i];
+            loads.add(v);
+            for (int k = offset[i + 1] - 1; k >= offset[i]; k--) diffs.add(Math.abs(v - values[neighbor[k]]));
+        }
+        finish();
+    }
+
+    private void finish() {
+        for (int l = 0; l < LEVELS.length; l++) {
+            load[l] = loads.quantile(LEVELS[l]);
+            diff[l] = diffs.quantile(LEVELS[l]);
+        }
+    }
+
+    private double value(Node node) {
+        return ((SelfED) node.getProtocol(pid)).getValue();
+    }
+}
@@ -3,129 +3,173 @@ package self_stabilizing_load_balancing;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
 import peersim.core.Control;
-import peersim.core.Network;
-import peersim.core.Node;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.List;
+import java.util.Arrays;
 
 public class MSEObserver implements Control {
 
     private final int pid;
     private final String prefix;
     private final boolean debug;
-    private BufferedWriter writer;
+    private final boolean console;
+    private MetricsSink sink;
     private final String outputFilename;
+    private final LoadMetrics metrics;
+    private final LoadQuantiles quantiles; // null unless configured
+    private final SelfCounters counters; // of the protocol, columns if enabled
+    private final Convergence convergence;
+    private final double[] row;
+    private Thread shutdownHook; // registered at the first observation
+    private boolean closed;
 
     public MSEObserver(String prefix) {
         this.prefix = prefix;
         this.pid = Configuration.getPid(prefix + ".protocol");
         this.debug = Configuration.getBoolean(prefix + ".debug", false);
+        this.console = Configuration.getBoolean(prefix + ".console", true);
         this.outputFilename = Configuration.getString(prefix + ".output_filename", "mse_data.csv");
-
-        try {
-            writer = new BufferedWriter(new FileWriter(outputFilename, false));
-            if (debug) {
-                writer.write("Cycle,MSE,Avg,Min,Max,Discrepancy\n");
-            } else {
-                writer.write("Cycle,MSE,Discrepancy\n");
+        this.metrics = new LoadMetrics(pid,
+                Configuration.getBoolean(prefix + ".incremental", false),
+                Configuration.getInt(prefix + ".rebuild", 100),
+                Configuration.getBoolean(prefix + ".vector", false));
+        this.quantiles = LoadQuantiles.create(prefix, pid);
+        this.counters = SelfCounters.forPrefix("protocol." + Configuration.getString(prefix + ".protocol"));
+        this.convergence = new Convergence(prefix);
+
+        String[] columns;
+        int[] decimals;
+        if (debug) {
+            columns = new String[]{"Cycle", "MSE", "Avg", "Min", "Max", "Discrepancy"};
+            decimals = new int[]{6, 2, 2, 2, 2};
+        } else {
+            columns = new String[]{"Cycle", "MSE", "Discrepancy"};
+            decimals = new int[]{6, 2};
+        }
+        if (quantiles != null) {
+            // load and neighbor difference quantiles, e.g. LoadP99, DiffP99
+            int base = columns.length;
+            int levels = LoadQuantiles.NAMES.length;
+            columns = Arrays.copyOf(columns, base + 2 * levels);
+            decimals = Arrays.copyOf(decimals, decimals.length + 2 * levels);
+            for (int l = 0; l < levels; l++) {
+                columns[base + l] = "Load" + LoadQuantiles.NAMES[l];
+                columns[base + levels + l] = "Diff" + LoadQuantiles.NAMES[l];
+                decimals[base - 1 + l] = 2;
+                decimals[base - 1 + levels + l] = 2;
             }
+        }
+        if (counters.enabled) {
+            // protocol work since the previous observation, e.g. Proposals, Rejected
+            int base = columns.length;
+            int fields = SelfCounters.NAMES.length;
+            columns = Arrays.copyOf(columns, base + fields);
+            decimals = Arrays.copyOf(decimals, decimals.length + fields);
+            System.arraycopy(SelfCounters.NAMES, 0, columns, base, fields);
+            System.arraycopy(SelfCounters.DECIMALS, 0, decimals, base - 1, fields);
+        }
+        row = new double[decimals.length];
+        try {
+            sink = MetricsSink.create(prefix, outputFilename, columns, decimals);
         } catch (IOException e) {
-            System.err.println("Error initializing CSV writer: " + e.getMessage());
+            System.err.println("Error initializing metrics output: " + e.getMessage());
         }
     }
 
+    /**
+     * @return true, ending the simulation, once the loads have converged
+     * (see {@link Convergence})
+     */
     public boolean execute() {
-        double totalLoad = 0;
-        int nodeCount = Network.size();
-        double maxLoad = Double.MIN_VALUE;
-        double minLoad = Double.MAX_VALUE;
-
-        // Max and min
-        for (int i = 0; i < nodeCount; i++) {
-            Node node = Network.get(i);
-            SelfED protocol = (SelfED) node.getProtocol(pid);
-            double value = protocol.getValue();
-
-            totalLoad += value;
-            if (value > maxLoad) maxLoad = value;
-            if (value < minLoad) minLoad = value;
-        }
-
-        double globalMaxNeighborDiff = 0;
-
-        for (int i = 0; i < nodeCount; i++) {
-            Node node = Network.get(i);
-            SelfED protocol = (SelfED) node.getProtocol(pid);
-            double nodeLoad = protocol.getValue();
-
-            double maxNeighborDiff = 0;
-            List<Node> neighbors = protocol.getNeighbors(node, pid); // get neighbors
-
-            for (Node neighbor : neighbors) {
-                SelfED neighborProtocol = (SelfED) neighbor.getProtocol(pid);
-                double neighborLoad = neighborProtocol.getValue();
-                double diff = Math.abs(nodeLoad - neighborLoad);
-
-                if (diff > maxNeighborDiff) {
-                    maxNeighborDiff = diff;
-                }
-            }
-
-            // Record the maximum neighbor load difference in the entire network
-            if (maxNeighborDiff > globalMaxNeighborDiff) {
-                globalMaxNeighborDiff = maxNeighborDiff;
-            }
-        }
-
-        double discrepancy = globalMaxNeighborDiff; // Set discrepancy
-
-
-        double avgLoad = totalLoad / nodeCount;
-    //    double discrepancy = maxLoad - minLoad;
+        metrics.observe();
+        if (quantiles != null) quantiles.observe();
+        return report();
+    }
 
-        double mse = 0;
-        for (int i = 0; i < nodeCount; i++) {
-            Node node = Network.get(i);
-            SelfED protocol = (SelfED) node.getProtocol(pid);
-            double diff = protocol.getValue() - avgLoad;
-            mse += diff * diff;
-        }
-        mse /= nodeCount;
+    /**
+     * Reports the loads of a {@link CsrSimulator} run instead of the network.
+     *
+     * @return true once the loads have converged
+     */
+    boolean observe(double[] values, CsrGraph graph) {
+        metrics.observe(values, graph);
+        if (quantiles != null) quantiles.observe(values, graph);
+        return report();
+    }
 
-        if (debug) {
-            System.out.printf("[MSE][Cycle %d] MSE: %.4f | Avg: %.2f | Discrepancy: %.2f%n",
-                    CommonState.getTime(), mse, avgLoad, discrepancy);
-        } else {
-            System.out.printf("%d\t%.6f\t%.2f%n",
-                    CommonState.getTime(), mse, discrepancy);
+    private boolean report() {
+        if (shutdownHook == null) {
+            // rows are buffered, write the rest when the simulation ends
+            // unless close() is called first
+            shutdownHook = new Thread(this::close);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
         }
+        double mse = metrics.mse;
+        double avgLoad = metrics.avg;
+        double minLoad = metrics.min;
+        double maxLoad = metrics.max;
+        double discrepancy = metrics.discrepancy;
 
-        try {
+        if (console) {
             if (debug) {
-                writer.write(String.format("%d,%.6f,%.2f,%.2f,%.2f,%.2f%n",
-                        CommonState.getTime(), mse, avgLoad,
-                        minLoad, maxLoad, discrepancy));
+                System.out.printf("[MSE][Cycle %d] MSE: %.4f | Avg: %.2f | Discrepancy: %.2f%n",
+                        CommonState.getTime(), mse, avgLoad, discrepancy);
             } else {
-                writer.write(String.format("%d,%.6f,%.2f%n",
-                        CommonState.getTime(), mse, discrepancy));
+                System.out.printf("%d\t%.6f\t%.2f%n",
+                        CommonState.getTime(), mse, discrepancy);
             }
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("Error writing to CSV: " + e.getMessage());
         }
 
-        return false;
+        if (sink != null) {
+            try {
+                if (debug) {
+                    row[0] = mse;
+                    row[1] = avgLoad;
+                    row[2] = minLoad;
+                    row[3] = maxLoad;
+                    row[4] = discrepancy;
+                } else {
+                    row[0] = mse;
+                    row[1] = discrepancy;
+                }
+                if (quantiles != null) {
+                    int base = debug ? 5 : 2;
+                    int levels = quantiles.load.length;
+                    System.arraycopy(quantiles.load, 0, row, base, levels);
+                    System.arraycopy(quantiles.diff, 0, row, base + levels, levels);
+                }
+                if (counters.enabled) {
+                    double[] counts = counters.observe();
+                    System.arraycopy(counts, 0, row, row.length - counts.length, counts.length);
+                }
+                sink.row(CommonState.getTime(), row);
+            } catch (IOException e) {
+                System.err.println("Error writing metrics: " + e.getMessage());
+            }
+        }
+        return convergence.observe(CommonState.getTime(), mse, discrepancy);
     }
 
-    public void close() {
+    /**
+     * Reports the convergence and flushes the output, once; later calls do
+     * nothing.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // shutting down already, the hook finds it closed
+            }
+        }
+        convergence.report(metrics.mse, metrics.discrepancy);
         try {
-            if (writer != null) {
-                writer.close();
+            if (sink != null) {
+                sink.close();
             }
         } catch (IOException e) {
-            System.err.println("Error closing CSV writer: " + e.getMessage());
+            System.err.println("Error closing metrics output: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package self_stabilizing_load_balancing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only, little endian memory mapping of a whole file, in windows of
+ * 1 GB so that files above 2 GB can be mapped too. Values are read at byte
+ * positions; a value must not straddle two windows, which holds for the
+ * files of this package since their sections start at multiples of their
+ * element size.
+ */
+final class MappedFile {
+
+    private static final int WINDOW_BITS = 30;
+
+    final long size;
+    private final ByteBuffer[] windows;
+
+    private MappedFile(long size, ByteBuffer[] windows) {
+        this.size = size;
+        this.windows = windows;
+    }
+
+    static MappedFile map(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer[] windows = new ByteBuffer[(int) ((size + (1L << WINDOW_BITS) - 1) >>> WINDOW_BITS)];
+            for (int w = 0; w < windows.length; w++) {
+                long start = (long) w << WINDOW_BITS;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(1L << WINDOW_BITS, size - start)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // the mapping stays valid once the channel is closed
+            return new MappedFile(size, windows);
+        }
+    }
+
+    private ByteBuffer window(long pos) {
+        return windows[(int) (pos >>> WINDOW_BITS)];
+    }
+
+    private static int offset(long pos) {
+        return (int) (pos & ((1L << WINDOW_BITS) - 1));
+    }
+
+    byte get(long pos) {
+        return window(pos).get(offset(pos));
+    }
+
+    int getInt(long pos) {
+        return window(pos).getInt(offset(pos));
+    }
+
+    long getLong(long pos) {
+        return window(pos).getLong(offset(pos));
+    }
+
+    double getDouble(long pos) {
+        return window(pos).getDouble(offset(pos));
+    }
+}
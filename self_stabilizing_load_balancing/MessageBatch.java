@@ -0,0 +1,165 @@
+package self_stabilizing_load_balancing;
+
+import peersim.core.CommonState;
+import peersim.core.Node;
+import peersim.edsim.EDSimulator;
+import peersim.transport.Transport;
+
+import java.util.Arrays;
+
+/**
+ * Proposals or Acks of one node that share a single entry of the event queue
+ * (see <code>batch</code> in {@link SelfED}). The event is scheduled to the
+ * sending node, which hands each message to its receiver when it is due and
+ * schedules the batch again for the next message.
+ * <p>
+ * Batches that travel as events come from a pool and go back to it once
+ * delivered; the simulation is single threaded.
+ */
+final class MessageBatch {
+
+    final boolean acks;
+    double tentativeLoad; // of the sender, for proposals
+    long sentAt;
+    Node[] dest = new Node[4];
+    int[] amount = new int[4];
+    long[] proposedAt = new long[4]; // of Acks, when the proposal they answer was sent
+    private long[] delay = new long[4];
+    int size;
+    int next; // first message not delivered yet
+
+    private MessageBatch nextFree;
+    private static MessageBatch freeProposals;
+    private static MessageBatch freeAcks;
+    // scratch of sortByDelay
+    private static long[] keys = new long[0];
+    private static Node[] sortedDest = new Node[0];
+    private static int[] sortedAmount = new int[0];
+    private static long[] sortedProposedAt = new long[0];
+
+    MessageBatch(boolean acks) {
+        this.acks = acks;
+    }
+
+    void add(Node q, int value) {
+        add(q, value, 0, 0);
+    }
+
+    void add(Node q, int value, long proposedAt) {
+        add(q, value, proposedAt, 0);
+    }
+
+    private void add(Node q, int value, long proposedAt, long d) {
+        if (size == dest.length) {
+            dest = Arrays.copyOf(dest, 2 * size);
+            amount = Arrays.copyOf(amount, 2 * size);
+            this.proposedAt = Arrays.copyOf(this.proposedAt, 2 * size);
+            delay = Arrays.copyOf(delay, 2 * size);
+        }
+        dest[size] = q;
+        amount[size] = value;
+        this.proposedAt[size] = proposedAt;
+        delay[size++] = d;
+    }
+
+    /**
+     * Sends the messages from <code>node</code> as one batch and empties this
+     * one. Each message is dropped with probability <code>loss</code> and
+     * delayed by <code>tr.getLatency</code>, as the transport would do with
+     * a message of its own.
+     */
+    void send(Node node, int pid, Transport tr, float loss) {
+        MessageBatch b = obtain(acks, tentativeLoad);
+        boolean sorted = true;
+        for (int k = 0; k < size; k++) {
+            Node q = dest[k];
+            dest[k] = null;
+            if (loss > 0 && CommonState.r.nextFloat() < loss) continue;
+            long d = tr.getLatency(node, q);
+            if (b.size > 0 && d < b.delay[b.size - 1]) sorted = false;
+            b.add(q, amount[k], proposedAt[k], d);
+        }
+        size = 0;
+        if (b.size == 0) {
+            b.recycle();
+            return;
+        }
+        if (!sorted) b.sortByDelay();
+        b.sentAt = CommonState.getTime();
+        EDSimulator.add(b.delay[0], b, node, pid);
+    }
+
+    /**
+     * Stable sort of the messages by delay; delays are below 2^31.
+     */
+    private void sortByDelay() {
+        if (keys.length < size) {
+            int n = Math.max(size, 2 * keys.length);
+            keys = new long[n];
+            sortedDest = new Node[n];
+            sortedAmount = new int[n];
+            sortedProposedAt = new long[n];
+        }
+        for (int k = 0; k < size; k++) keys[k] = delay[k] << 32 | k;
+        Arrays.sort(keys, 0, size);
+        for (int k = 0; k < size; k++) {
+            int i = (int) keys[k];
+            sortedDest[k] = dest[i];
+            sortedAmount[k] = amount[i];
+            sortedProposedAt[k] = proposedAt[i];
+            delay[k] = keys[k] >>> 32;
+        }
+        System.arraycopy(sortedDest, 0, dest, 0, size);
+        System.arraycopy(sortedAmount, 0, amount, 0, size);
+        System.arraycopy(sortedProposedAt, 0, proposedAt, 0, size);
+        Arrays.fill(sortedDest, 0, size, null);
+    }
+
+    /**
+     * End of the messages due now, those with the delay of message
+     * <code>next</code>.
+     */
+    int due() {
+        int end = next;
+        while (end < size && delay[end] == delay[next]) end++;
+        return end;
+    }
+
+    /**
+     * Marks the messages before <code>end</code> delivered, then schedules
+     * the batch for the next message or returns it to the pool.
+     */
+    void delivered(int end, Node node, int pid) {
+        long now = delay[next];
+        next = end;
+        if (next < size) EDSimulator.add(delay[next] - now, this, node, pid);
+        else recycle();
+    }
+
+    private static MessageBatch obtain(boolean acks, double tentativeLoad) {
+        MessageBatch b = acks ? freeAcks : freeProposals;
+        if (b == null) {
+            b = new MessageBatch(acks);
+        } else if (acks) {
+            freeAcks = b.nextFree;
+        } else {
+            freeProposals = b.nextFree;
+        }
+        b.nextFree = null;
+        b.tentativeLoad = tentativeLoad;
+        return b;
+    }
+
+    private void recycle() {
+        Arrays.fill(dest, 0, size, null);
+        size = 0;
+        next = 0;
+        if (acks) {
+            nextFree = freeAcks;
+            freeAcks = this;
+        } else {
+            nextFree = freeProposals;
+            freeProposals = this;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the per-observation rows of {@link MSEObserver}. A row is
+ * the cycle followed by one value per remaining column.
+ * <p>
+ * Parameters (under the observer prefix):
+ * <ul>
+ * <li><code>sink</code>: <code>csv</code> (default, see {@link CsvMetricsSink})
+ * or <code>columnar</code> (see {@link ColumnarMetricsSink})</li>
+ * <li><code>flush_rows</code>: CSV rows buffered before a write, default 4096</li>
+ * <li><code>flush_ms</code>: longest time a CSV row stays buffered, default 1000</li>
+ * </ul>
+ */
+public interface MetricsSink extends Closeable {
+
+    void row(long cycle, double[] values) throws IOException;
+
+    /**
+     * @param columns column names, starting with the cycle column
+     * @param decimals decimals of each CSV value column (without the cycle)
+     */
+    static MetricsSink create(String prefix, String filename, String[] columns, int[] decimals)
+            throws IOException {
+        String sink = Configuration.getString(prefix + ".sink", "csv");
+        switch (sink) {
+            case "csv":
+                return new CsvMetricsSink(filename, columns, decimals,
+                        Configuration.getInt(prefix + ".flush_rows", 4096),
+                        Configuration.getLong(prefix + ".flush_ms", 1000));
+            case "columnar":
+                return new ColumnarMetricsSink(filename, columns);
+            default:
+                throw new IllegalArgumentException("Unknown metrics sink " + sink + " in " + prefix);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package self_stabilizing_load_balancing;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Connects the processes of a partitioned {@link CsrSimulator} run over
+ * localhost sockets, one connection per pair of partitions, and moves one
+ * frame per peer at a time.
+ * <p>
+ * Partition 0 is the process started by hand: it starts the others as JVMs
+ * with its own command line, JVM options and class path, adding
+ * <code>csr.partition</code> and <code>csr.partition.port</code>, the port
+ * it listens on. They report the ports they listen on, partition 0 sends
+ * the list to all, and each partition connects to those with a smaller
+ * number and accepts the others.
+ * <p>
+ * {@link #exchange} sends a frame to every peer and returns once one has
+ * arrived from every peer, so it is also the barrier between the phases of
+ * a round. A frame is its length as an int followed by the records the
+ * caller wrote into {@link #frame}.
+ */
+final class PartitionTransport implements Closeable {
+
+    final int partition;
+    final int partitions;
+    long sent; // bytes
+
+    private final ServerSocketChannel server;
+    private final Process[] children; // of partition 0
+    private int coordinatorPort; // of the other partitions
+    private final SocketChannel[] peer;
+    private final ByteBuffer[] out;
+    private final ByteBuffer[] in;
+    private final ByteBuffer[] length;
+    private final SelectionKey[] key;
+    private Selector selector;
+
+    private PartitionTransport(int partition, int partitions, Process[] children) throws IOException {
+        this.partition = partition;
+        this.partitions = partitions;
+        this.children = children;
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        peer = new SocketChannel[partitions];
+        out = new ByteBuffer[partitions];
+        in = new ByteBuffer[partitions];
+        length = new ByteBuffer[partitions];
+        key = new SelectionKey[partitions];
+    }
+
+    /**
+     * Starts the other partitions, in the background while this one
+     * initializes; {@link #connect} waits for them.
+     *
+     * @param args the command line of this process, with a fixed seed
+     */
+    static PartitionTransport coordinator(int partitions, String[] args) throws IOException {
+        Process[] children = new Process[partitions];
+        PartitionTransport transport = new PartitionTransport(0, partitions, children);
+        int port = ((InetSocketAddress) transport.server.getLocalAddress()).getPort();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process child : children) {
+                if (child != null) child.destroy();
+            }
+        }));
+        for (int p = 1; p < partitions; p++) {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(CsrSimulator.class.getName());
+            command.addAll(Arrays.asList(args));
+            command.add("csr.partition=" + p);
+            command.add("csr.partition.port=" + port);
+            children[p] = new ProcessBuilder(command).inheritIO().start();
+        }
+        return transport;
+    }
+
+    /**
+     * @param port the port partition 0 listens on
+     */
+    static PartitionTransport worker(int partition, int partitions, int port) throws IOException {
+        PartitionTransport transport = new PartitionTransport(partition, partitions, null);
+        transport.coordinatorPort = port;
+        return transport;
+    }
+
+    /**
+     * Connects to all other partitions.
+     */
+    void connect() throws IOException {
+        int[] ports = new int[partitions];
+        if (partition == 0) {
+            for (int c = 1; c < partitions; c++) {
+                SocketChannel channel = accept();
+                int[] hello = read(channel, 2);
+                peer[hello[0]] = channel;
+                ports[hello[0]] = hello[1];
+            }
+            for (int p = 1; p < partitions; p++) write(peer[p], ports);
+        } else {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    coordinatorPort));
+            write(channel, partition, ((InetSocketAddress) server.getLocalAddress()).getPort());
+            peer[0] = channel;
+            ports = read(channel, partitions);
+            for (int p = 1; p < partition; p++) {
+                channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[p]));
+                write(channel, partition);
+                peer[p] = channel;
+            }
+            for (int c = partition + 1; c < partitions; c++) {
+                channel = accept();
+                peer[read(channel, 1)[0]] = channel;
+            }
+        }
+        server.close();
+        selector = Selector.open();
+        for (int p = 0; p < partitions; p++) {
+            if (p == partition) continue;
+            peer[p].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            peer[p].configureBlocking(false);
+            key[p] = peer[p].register(selector, 0, p);
+            out[p] = ByteBuffer.allocateDirect(1 << 16);
+            in[p] = ByteBuffer.allocateDirect(1 << 16);
+            length[p] = ByteBuffer.allocateDirect(4);
+        }
+    }
+
+    /**
+     * Accepts a connection, checking meanwhile that the started partitions
+     * are still running.
+     */
+    private SocketChannel accept() throws IOException {
+        server.configureBlocking(false);
+        try (Selector accepting = Selector.open()) {
+            server.register(accepting, SelectionKey.OP_ACCEPT);
+            while (true) {
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(true);
+                    return channel;
+                }
+                if (children != null) {
+                    for (int p = 1; p < partitions; p++) {
+                        if (!children[p].isAlive()) {
+                            throw new IOException("partition " + p + " exited with status " + children[p].exitValue());
+                        }
+                    }
+                }
+                accepting.select(1000);
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, int... values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for (int v : values) buffer.putInt(v);
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static int[] read(SocketChannel channel, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("connection closed during setup");
+        }
+        buffer.flip();
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) values[i] = buffer.getInt();
+        return values;
+    }
+
+    /**
+     * The empty frame to the given partition, with room for at least
+     * <code>bytes</code> bytes of records.
+     */
+    ByteBuffer frame(int to, int bytes) {
+        ByteBuffer frame = out[to];
+        if (frame.capacity() < 4 + bytes) {
+            frame = ByteBuffer.allocateDirect(Math.max(4 + bytes, 2 * frame.capacity()));
+            out[to] = frame;
+        }
+        frame.clear();
+        frame.position(4);
+        return frame;
+    }
+
+    /**
+     * The records of the frame last received from the given partition.
+     */
+    ByteBuffer received(int from) {
+        return in[from];
+    }
+
+    /**
+     * Sends the frames written since the previous exchange and receives one
+     * from every other partition.
+     */
+    void exchange() throws IOException {
+        int pending = 0;
+        for (int p = 0; p < partitions; p++) {
+            if (p == partition) continue;
+            ByteBuffer frame = out[p];
+            if (frame.position() == 0) frame.position(4); // nothing written: empty frame
+            frame.flip();
+            frame.putInt(0, frame.limit() - 4);
+            sent += frame.limit();
+            length[p].clear();
+            in[p].clear().limit(0);
+            key[p].interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            pending += 2;
+        }
+        while (pending > 0) {
+            selector.select();
+            for (SelectionKey k : selector.selectedKeys()) {
+                int p = (Integer) k.attachment();
+                if (k.isWritable() && out[p].hasRemaining()) {
+                    peer[p].write(out[p]);
+                    if (!out[p].hasRemaining()) {
+                        k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+                        pending--;
+                    }
+                }
+                if (k.isReadable() && readFrame(p)) {
+                    k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+                    pending--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        for (int p = 0; p < partitions; p++) {
+            if (p != partition) out[p].clear();
+        }
+    }
+
+    /**
+     * Reads what has arrived of the frame from a partition, never past its
+     * end: the next frame may follow on the connection.
+     *
+     * @return true once the frame is complete
+     */
+    private boolean readFrame(int p) throws IOException {
+        ByteBuffer size = length[p];
+        if (size.hasRemaining()) {
+            if (peer[p].read(size) < 0) throw new EOFException("partition " + p + " closed the connection");
+            if (size.hasRemaining()) return false;
+            int bytes = size.getInt(0);
+            if (in[p].capacity() < bytes) in[p] = ByteBuffer.allocateDirect(Math.max(bytes, 2 * in[p].capacity()));
+            in[p].clear().limit(bytes);
+        }
+        ByteBuffer frame = in[p];
+        if (frame.hasRemaining() && peer[p].read(frame) < 0) {
+            throw new EOFException("partition " + p + " closed the connection");
+        }
+        if (frame.hasRemaining()) return false;
+        frame.flip();
+        return true;
+    }
+
+    /**
+     * Closes the connections; partition 0 waits for the others to end.
+     */
+    @Override
+    public void close() throws IOException {
+        if (selector != null) selector.close();
+        for (SocketChannel channel : peer) {
+            if (channel != null) channel.close();
+        }
+        server.close();
+        if (children == null) return;
+        for (int p = 1; p < partitions; p++) {
+            try {
+                int status = children[p].waitFor();
+                if (status != 0) System.err.println("Partition " + p + " exited with status " + status);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.ParsedProperties;
+import peersim.core.CommonState;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs {@link CsrSimulator} in sync mode on 1, 2, 4, ... up to the given
+ * number of threads and prints the time per round, the speedup over one
+ * thread and whether the MSE output is the same as with one thread.
+ * <pre>
+ * java self_stabilizing_load_balancing.ScalingReport 8 Configuration/config-testing_ss_ba.txt \
+ *     Configuration/config-testing_ss_ws.txt -- SIZE=1000000 CYCLES=20
+ * </pre>
+ * Parameters after <code>--</code> apply to every configuration.
+ */
+public class ScalingReport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ScalingReport <max threads> <config file>... [-- name=value ...]");
+            System.exit(1);
+        }
+        int maxThreads = Integer.parseInt(args[0]);
+        List<String> configs = new ArrayList<>();
+        List<String> overrides = new ArrayList<>();
+        boolean common = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--")) common = true;
+            else if (common) overrides.add(args[i]);
+            else configs.add(args[i]);
+        }
+        List<Integer> counts = new ArrayList<>();
+        for (int t = 1; t < maxThreads; t *= 2) counts.add(t);
+        counts.add(maxThreads);
+
+        System.out.printf("%-40s %7s %9s %10s %8s %s%n", "config", "threads", "init ms", "ms/round", "speedup",
+                "output");
+        for (String config : configs) {
+            // warm up the JIT so that the one thread run is not measured cold
+            Path warmup = Files.createTempFile("scaling", ".csv");
+            load(config, overrides, 1, warmup).run();
+            Files.delete(warmup);
+            double base = 0;
+            byte[] reference = null;
+            for (int threads : counts) {
+                Path out = Files.createTempFile("scaling", ".csv");
+                CsrSimulator sim = load(config, overrides, threads, out);
+                sim.run();
+                double perRound = (double) sim.runMillis / Math.max(1, sim.rounds);
+                if (threads == 1) base = perRound;
+                byte[] result = Files.readAllBytes(out);
+                if (reference == null) reference = result;
+                System.out.printf("%-40s %7d %9d %10.2f %8.2f %s%n", Paths.get(config).getFileName(), threads,
+                        sim.initMillis, perRound, base / perRound,
+                        Arrays.equals(reference, result) ? "same" : "DIFFERENT");
+                Files.delete(out);
+            }
+        }
+    }
+
+    private static CsrSimulator load(String config, List<String> overrides, int threads, Path out) {
+        List<String> args = new ArrayList<>();
+        args.add(config);
+        args.addAll(overrides);
+        args.add("csr.mode=sync");
+        args.add("csr.threads=" + threads);
+        Configuration.setConfig(new ParsedProperties(args.toArray(new String[0])));
+        // every run writes its MSE rows to one file, compared across thread counts
+        for (String name : Configuration.getNames("control")) {
+            if (Configuration.getString(name).endsWith("MSEObserver")) {
+                args.add(name + ".output_filename=" + out);
+                args.add(name + ".console=false");
+                args.add(name + ".sink=csv");
+            } else if (SweepRunner.writesFiles(Configuration.getString(name))) {
+                args.add(name + ".enabled=false");
+            }
+        }
+        Configuration.setConfig(new ParsedProperties(args.toArray(new String[0])));
+        CommonState.initializeRandom(Configuration.getLong("random.seed", System.currentTimeMillis()));
+        return new CsrSimulator();
+    }
+}
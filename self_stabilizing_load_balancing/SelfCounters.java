@@ -0,0 +1,254 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Work counters of {@link SelfED}, configured per protocol prefix like
+ * {@link SelfTrace}: proposals sent, accepted and rejected, Acks received,
+ * load moved by accepted proposals, allocation units of RRProposal (see
+ * {@link #proposals}) and the round trip of the Acks (from the proposal leaving to its Ack
+ * arriving).
+ * <p>
+ * Parameters (under the protocol prefix, e.g. <code>protocol.avg</code>):
+ * <ul>
+ * <li><code>counters</code>: count, default false</li>
+ * </ul>
+ * Each counting thread adds to a {@link Stripe} of its own, plain longs
+ * that only it writes; stripes are summed when a cycle ends, by the thread
+ * that runs the simulation. Every cycle (<code>step</code>) with events is
+ * committed as a {@link SelfCycleEvent} to Flight Recorder, and
+ * {@link MSEObserver} adds the counts since its previous observation as
+ * columns ({@link #NAMES}).
+ */
+final class SelfCounters {
+
+    /** Observer columns, in the order of {@link #observe}. */
+    static final String[] NAMES = {"Proposals", "Accepted", "Rejected", "Acks", "Moved", "RRUnits",
+            "AckDelay", "AckDelayMax"};
+    static final int[] DECIMALS = {0, 0, 0, 0, 0, 0, 2, 0};
+
+    // running totals of a stripe
+    private static final int PROPOSALS = 0;
+    private static final int ACCEPTED = 1;
+    private static final int REJECTED = 2;
+    private static final int ACKS = 3;
+    private static final int MOVED = 4;
+    private static final int RR_UNITS = 5;
+    private static final int DELAY = 6; // sum of the round trips
+    private static final int FIELDS = 7;
+
+    private static final String PAR_COUNTERS = "counters";
+    private static final String PAR_STEP = "step";
+
+    private static final Map<String, SelfCounters> byPrefix = new HashMap<>();
+
+    private static final SelfCounters OFF = new SelfCounters(false, 1);
+
+    /** False if counting is off; the only check on the hot path. */
+    final boolean enabled;
+    private final long step;
+    private final List<Stripe> stripes = new ArrayList<>();
+    /** The stripe of the single threaded simulation. */
+    final Stripe local;
+
+    private long cycleEnd = Long.MIN_VALUE; // first time past the cycle in progress
+    private long cycleStart;
+    private final long[] atCycle = new long[FIELDS]; // totals when the cycle started
+    private final long[] atObservation = new long[FIELDS]; // totals at the last observation
+    private final long[] total = new long[FIELDS];
+    private final double[] observed = new double[NAMES.length];
+    private boolean closed;
+
+    /**
+     * Returns the counters configured for the given protocol prefix. All
+     * instances of the protocol (clones of the prototype) share them.
+     */
+    static synchronized SelfCounters forPrefix(String prefix) {
+        SelfCounters counters = byPrefix.get(prefix);
+        if (counters == null) {
+            counters = create(prefix);
+            byPrefix.put(prefix, counters);
+        }
+        return counters;
+    }
+
+    /**
+     * New counters for the given protocol prefix, which replace those
+     * {@link #forPrefix} returned so far; for simulators that run several
+     * times in one JVM.
+     */
+    static synchronized SelfCounters renew(String prefix) {
+        byPrefix.remove(prefix);
+        return forPrefix(prefix);
+    }
+
+    private static SelfCounters create(String prefix) {
+        if (!Configuration.getBoolean(prefix + "." + PAR_COUNTERS, false)) return OFF;
+        SelfCounters counters = new SelfCounters(true, Math.max(1, Configuration.getLong(prefix + "." + PAR_STEP, 1)));
+        Runtime.getRuntime().addShutdownHook(new Thread(counters::close));
+        return counters;
+    }
+
+    private SelfCounters(boolean enabled, long step) {
+        this.enabled = enabled;
+        this.step = step;
+        this.local = stripe();
+    }
+
+    /**
+     * A new stripe, to be written by one thread only.
+     */
+    synchronized Stripe stripe() {
+        Stripe stripe = new Stripe();
+        stripes.add(stripe);
+        return stripe;
+    }
+
+//--------------------------------------------------------------------------
+// events of the single threaded simulation
+//--------------------------------------------------------------------------
+
+    /**
+     * @param rrUnits allocation units of RRProposal, {@link WaterFill#unitSteps}:
+     * one per receiver and full round of l41.a and one per unit of the
+     * round-robin of l42-43. These are the iterations of the unit-step loop
+     * WaterFill replaced, a measure of how finely the load was split rather
+     * than of the work done.
+     */
+    void proposals(long time, int proposals, int rrUnits) {
+        at(time);
+        local.proposals(proposals, rrUnits);
+    }
+
+    void accept(long time, int deal) {
+        at(time);
+        local.accept(deal);
+    }
+
+    void reject(long time) {
+        at(time);
+        local.reject();
+    }
+
+    /**
+     * @param proposedAt when the proposal the Ack answers was sent
+     */
+    void ack(long time, long proposedAt) {
+        at(time);
+        local.ack(time - proposedAt);
+    }
+
+    /**
+     * Ends the cycle in progress if <code>time</code> is past it. Called by
+     * the thread that runs the simulation, while no other writes a stripe.
+     */
+    void at(long time) {
+        if (time < cycleEnd) return;
+        if (cycleEnd != Long.MIN_VALUE) endCycle();
+        cycleStart = time - Math.floorMod(time, step);
+        cycleEnd = cycleStart + step;
+    }
+
+    private synchronized void endCycle() {
+        sum();
+        long maxDelay = 0;
+        for (Stripe s : stripes) {
+            maxDelay = Math.max(maxDelay, s.cycleMaxDelay);
+            s.cycleMaxDelay = 0;
+        }
+        SelfCycleEvent event = new SelfCycleEvent();
+        if (event.shouldCommit()) {
+            event.cycle = cycleStart;
+            event.proposals = total[PROPOSALS] - atCycle[PROPOSALS];
+            event.accepted = total[ACCEPTED] - atCycle[ACCEPTED];
+            event.rejected = total[REJECTED] - atCycle[REJECTED];
+            event.acks = total[ACKS] - atCycle[ACKS];
+            event.moved = total[MOVED] - atCycle[MOVED];
+            event.rrUnits = total[RR_UNITS] - atCycle[RR_UNITS];
+            event.ackDelay = mean(total[DELAY] - atCycle[DELAY], event.acks);
+            event.ackDelayMax = maxDelay;
+            event.commit();
+        }
+        System.arraycopy(total, 0, atCycle, 0, FIELDS);
+    }
+
+    private void sum() {
+        Arrays.fill(total, 0);
+        for (Stripe s : stripes) {
+            for (int f = 0; f < FIELDS; f++) total[f] += s.count[f];
+        }
+    }
+
+    private static double mean(long sum, long count) {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * The counts since the previous call, by {@link #NAMES}: the round trip
+     * as mean and maximum over the Acks received. Called by the thread that
+     * runs the simulation.
+     */
+    synchronized double[] observe() {
+        sum();
+        long maxDelay = 0;
+        for (Stripe s : stripes) {
+            maxDelay = Math.max(maxDelay, s.observedMaxDelay);
+            s.observedMaxDelay = 0;
+        }
+        for (int f = 0; f < DELAY; f++) observed[f] = total[f] - atObservation[f];
+        observed[DELAY] = mean(total[DELAY] - atObservation[DELAY], total[ACKS] - atObservation[ACKS]);
+        observed[DELAY + 1] = maxDelay;
+        System.arraycopy(total, 0, atObservation, 0, FIELDS);
+        return observed;
+    }
+
+    /**
+     * Commits the last cycle. Called from a shutdown hook.
+     */
+    synchronized void close() {
+        if (closed || cycleEnd == Long.MIN_VALUE) return;
+        closed = true;
+        endCycle();
+    }
+
+    /**
+     * Counters of one thread. The array is padded so that stripes of
+     * different threads do not share a cache line.
+     */
+    static final class Stripe {
+
+        private final long[] count = new long[FIELDS + 8];
+        private long cycleMaxDelay;
+        private long observedMaxDelay;
+
+        private Stripe() {
+        }
+
+        void proposals(int proposals, int rrUnits) {
+            count[PROPOSALS] += proposals;
+            count[RR_UNITS] += rrUnits;
+        }
+
+        void accept(int deal) {
+            count[ACCEPTED]++;
+            count[MOVED] += deal;
+        }
+
+        void reject() {
+            count[REJECTED]++;
+        }
+
+        void ack(long delay) {
+            count[ACKS]++;
+            count[DELAY] += delay;
+            if (delay > cycleMaxDelay) cycleMaxDelay = delay;
+            if (delay > observedMaxDelay) observedMaxDelay = delay;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package self_stabilizing_load_balancing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event with the {@link SelfCounters} of one cycle, e.g.
+ * <pre>
+ * java -XX:StartFlightRecording=filename=run.jfr ... peersim.Simulator config.txt protocol.avg.counters=true
+ * jfr print --events self_stabilizing_load_balancing.SelfCycle run.jfr
+ * </pre>
+ */
+@Name("self_stabilizing_load_balancing.SelfCycle")
+@Label("SelfED Cycle")
+@Category({"PeerSim", "SelfED"})
+@Description("Work of the SelfED protocol in one cycle of simulated time")
+@StackTrace(false)
+final class SelfCycleEvent extends Event {
+
+    @Label("Cycle")
+    @Description("Simulated time the cycle starts at")
+    long cycle;
+
+    @Label("Proposals")
+    long proposals;
+
+    @Label("Accepted")
+    long accepted;
+
+    @Label("Rejected")
+    @Description("Proposals whose tentative load was not above the receiver's load")
+    long rejected;
+
+    @Label("Acks")
+    long acks;
+
+    @Label("Load Moved")
+    @Description("Sum of the deals of the accepted proposals")
+    long moved;
+
+    @Label("RRProposal Units")
+    @Description("Allocation units of RRProposal: one per receiver and full round and one per round-robin unit")
+    long rrUnits;
+
+    @Label("Mean Ack Delay")
+    @Description("Mean simulated time from a proposal to its Ack")
+    double ackDelay;
+
+    @Label("Max Ack Delay")
+    long ackDelayMax;
+}
@@ -1,11 +1,13 @@
 package self_stabilizing_load_balancing;
 
 import peersim.cdsim.CDProtocol;
+import peersim.config.Configuration;
 import peersim.config.FastConfig;
 import peersim.core.CommonState;
 import peersim.core.Linkable;
 import peersim.core.Node;
 import peersim.edsim.EDProtocol;
+import peersim.edsim.EDSimulator;
 import peersim.transport.Transport;
 import peersim.vector.SingleValueHolder;
 
@@ -41,15 +43,58 @@ public class SelfED extends SingleValueHolder
     // parameters
     private int lastReceivedLoad = 0;
     private int lastGaveLoad = 0;
-    private double tLoad; // temporal load
+    double tLoad; // temporal load, package-private for the benchmarks
     private Map<Node, Boolean> pendingAcks = new HashMap<>(); // pending Ack
     private Map<Node, Integer> expectedTransfers = new HashMap<>(); // expectedTransfers for each node
+    private final SelfTrace trace; // event tracing, off unless configured
+    private final SelfCounters counters; // work counters, off unless configured
+
+    // compact mode: neighbors resolved once into arrays, pending Acks as a counter
+    private static final String PAR_COMPACT = "compact";
+    private final boolean compact;
+    private final Scratch scratch; // shared by all instances, the simulation is single threaded
+    private final WaterFill waterFill = new WaterFill(); // RRProposal buffers, shared as well
+    private SelfED[] nbr; // neighbor protocols, by position in the Linkable
+    private Node[] nbrNode;
+    private int[] nbrHash; // hash codes of nbrNode, for HashOrder
+    private boolean idHash; // Node.hashCode() is (int) getID(), so the hash codes are distinct
+    private int pending; // Acks still expected, counted in both modes
+
+    // batch mode: a cycle's proposals travel as one event, and so do the Acks a node answers
+    // until the first of them must leave to reach its proposer before the proposer's next cycle
+    private static final String PAR_BATCH = "batch";
+    private static final Object FLUSH_ACKS = new Object(); // event: the Ack deadline has come
+    private final boolean batch;
+    private final float loss; // drop probability of the transport, applied to each batched message
+    private final long step; // cycle length
+    private final long maxDelay; // of the transport
+    private final MessageBatch outgoing; // proposals, shared by all instances, sent at the end of nextCycle
+    private MessageBatch acks; // this node's, held until ackDeadline or its next cycle
+    private long ackDeadline = Long.MAX_VALUE;
+    private long nextCycleAt = -1;
 
     /**
      * @param prefix string prefix for config properties
      */
     public SelfED(String prefix) {
         super(prefix);
+        trace = SelfTrace.forPrefix(prefix);
+        counters = SelfCounters.forPrefix(prefix);
+        compact = Configuration.getBoolean(prefix + "." + PAR_COMPACT, false) && hashOrderMatches(prefix);
+        scratch = compact ? new Scratch() : null;
+        batch = Configuration.getBoolean(prefix + "." + PAR_BATCH, false);
+        step = Configuration.getLong(prefix + ".step", 1);
+        // drop of UnreliableTransport and delay of the UniformRandomTransport it wraps; with
+        // another transport the maximum delay is unknown and Acks are not held
+        String tr = batch ? Configuration.getString(prefix + ".transport") : "";
+        loss = (float) Configuration.getDouble("protocol." + tr + ".drop", 0);
+        while (Configuration.contains("protocol." + tr + ".transport")) {
+            tr = Configuration.getString("protocol." + tr + ".transport");
+        }
+        maxDelay = Configuration.contains("protocol." + tr + ".mindelay")
+                ? Configuration.getLong("protocol." + tr + ".maxdelay",
+                Configuration.getLong("protocol." + tr + ".mindelay")) : step;
+        outgoing = batch ? new MessageBatch(false) : null;
     } //initialize the neighbor
 
 
@@ -63,8 +108,18 @@ public class SelfED extends SingleValueHolder
      * {@link peersim.edsim.CDScheduler} component in the configuration.
      */
     public void nextCycle(Node node, int pid) {
+        if (batch) {
+            sendAcks(node, pid);
+            nextCycleAt = CommonState.getTime() + step;
+        }
+        if (compact) {
+            nextCycleCompact(node, pid);
+            return;
+        }
         // l5-l8
+        double oldValue = this.value;
         this.value = this.value +lastReceivedLoad-lastGaveLoad;
+        if (this.value != oldValue) LoadMetrics.valueChanged(pid, node, oldValue, this.value);
         lastReceivedLoad = 0;
         lastGaveLoad = 0;
         tLoad = this.value; // initialize t-load to value
@@ -99,7 +154,6 @@ public class SelfED extends SingleValueHolder
 //        System.out.printf("[Cycle %d] Node %d has the smallest load: %.2f%n", CommonState.getTime(), minNode.getID(), minLoad);
         // l14-15: compute loadToTransfer, tentativeLoad
         int loadToTransfer = Math.max(0, (int) Math.ceil((tLoad - minLoad) / 2)); //not be <0
-        System.out.print(loadToTransfer);
         double tentativeLoad = tLoad - loadToTransfer;
 
         // l16-l18：select PV_less（load(q) < TentativeLoad）
@@ -113,22 +167,26 @@ public class SelfED extends SingleValueHolder
         // l19: Define proposals to RRProposal with pvLess
         Map<Node, Integer> proposals = RRProposal(loadToTransfer, pvLess, tentativeLoad, pid);
 
-        System.out.printf("[Cycle %d] Node %d current load: %.2f, min neighbor (Node %d) load: %.2f%n",
-                CommonState.getTime(), node.getID(), this.value, minNode.getID(), minLoad);
+        if (trace.enabled) trace.cycle(CommonState.getTime(), node.getID(), minNode.getID(),
+                loadToTransfer, this.value, minLoad);
 
         // l20-l23: send proposal to all nodes in V_less
+        Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
         for (Map.Entry<Node, Integer> entry : proposals.entrySet()) {
             Node q = entry.getKey();
             //  int transfer = Math.max(0, entry.getValue()); // avoid <0
             int transfer = entry.getValue();
             expectedTransfers.put(q, transfer); // record expected transfers
-            Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
-            tr.send(node, q, new ProposalMsg(transfer, tentativeLoad, node), pid);
+            if (batch) outgoing.add(q, transfer);
+            else tr.send(node, q, ProposalMsg.obtain(transfer, tentativeLoad, node), pid);
             pendingAcks.put(q, false); // mark waiting Ack as false
+            pending++;
 
-            System.out.printf("[Cycle %d] Node %d sends proposal to Node %d: transfer %d, tentative load %.2f%n",
-                    CommonState.getTime(), node.getID(), q.getID(), transfer, tentativeLoad);
+            if (trace.enabled) trace.proposal(CommonState.getTime(), node.getID(), q.getID(),
+                    transfer, tentativeLoad);
         }
+        if (batch) sendProposals(node, pid, tr, tentativeLoad);
+        if (counters.enabled) counters.proposals(CommonState.getTime(), proposals.size(), waterFill.unitSteps);
         // l23: setting ack as true in ProcessEvent()
 
 
@@ -141,139 +199,395 @@ public class SelfED extends SingleValueHolder
      * This is the standard method to define to process incoming messages.
      */
     public void processEvent(Node node, int pid, Object event) {
-        double oldLoad = this.value;
         // l24: proposal processing
         if (event instanceof ProposalMsg proposal) {
-            SelfED senderProtocol = (SelfED) proposal.sender.getProtocol(pid);
-            // l25-l29:receive and respond to proposals
-            if (proposal.tentativeLoad > this.value) {
-                int deal = Math.min(
-                        (int) (proposal.tentativeLoad - this.value), //  the actual transferable load
-                        proposal.loadToTransfer
-                );
-                // l27: sending Ack
-                Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
-                tr.send(node, proposal.sender, new AckMsg(deal, node), pid);
-                // l28-l29: updating lastReceivedLoad and tload(p)
-                lastReceivedLoad += deal; // received loads
-                //        this.value += deal;
-                this.tLoad += deal; // update tentativeLoad**
-
-                System.out.printf("[Cycle %d] Node %d accepted proposal from Node %d: load %.2f -> %.2f (received %d)%n",
-                        CommonState.getTime(), node.getID(), proposal.sender.getID(),
-                        oldLoad, this.value, deal);
-
-            } else {
-                // l30-31: refuse the proposal
-                System.out.printf("[Cycle %d] Node %d rejected proposal from Node %d (tentative load %.2f <= current load %.2f)%n",
-                        CommonState.getTime(), node.getID(), proposal.sender.getID(),
-                        proposal.tentativeLoad, this.tLoad);
-
-                Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
-                tr.send(node, proposal.sender, new AckMsg(0, node), pid);
-            }
+            proposal(node, pid, proposal.sender, proposal.loadToTransfer, proposal.tentativeLoad, proposal.sentAt);
+            proposal.recycle();
         }
         // handle Ack, l32-34
-        if (event instanceof AckMsg) {
-            AckMsg ack = (AckMsg) event;
-//            int expected = expectedTransfers.getOrDefault(ack.sender, 0);
-//            int actualDeal = Math.min(ack.deal, expected); // avoid over-accumulation
-//            this.lastGaveLoad += actualDeal;
-            this.lastGaveLoad +=ack.deal;
-            pendingAcks.put(ack.sender, true); // mark Acks as true
-            this.tLoad -= ack.deal;
-
-            System.out.printf("[Cycle %d] Node %d received Ack from Node %d: gave %d, current tentative load: %.2f%n",
-                    CommonState.getTime(), node.getID(), ack.sender.getID(),
-                    ack.deal, this.tLoad);
-
-            // Adding part: if all Acks arrive, update the final value and load.
-            if (!pendingAcks.containsValue(false)) {
-                System.out.printf("[Cycle %d] lastGaveLoad=%d%n", CommonState.getTime(),lastGaveLoad);
-                //         this.value = this.value - lastGaveLoad; // update the final load
-                //         this.tLoad = this.value; // and update tload
-
-                pendingAcks.clear();
-                expectedTransfers.clear();
-                //     lastGaveLoad = 0; // empty for the use in next round
-                System.out.printf("[Cycle %d] Node %d finalized load update: %.2f -> %.2f%n",
-                        CommonState.getTime(), node.getID(), oldLoad, this.tLoad);
-
+        if (event instanceof AckMsg ack) {
+            ack(node, pid, ack.sender, ack.deal, ack.proposedAt);
+            ack.recycle();
+        }
+        // batch mode: node sent the batch, deliver the messages due now
+        if (event instanceof MessageBatch b) {
+            int end = b.due();
+            for (int k = b.next; k < end; k++) {
+                Node q = b.dest[k];
+                SelfED p = (SelfED) q.getProtocol(pid);
+                if (b.acks) {
+                    p.ack(q, pid, node, b.amount[k], b.proposedAt[k]);
+                } else {
+                    p.proposal(q, pid, node, b.amount[k], b.tentativeLoad, b.sentAt);
+                    // the proposer's next cycle starts at sentAt + step
+                    p.holdAcks(q, pid, b.sentAt + step - maxDelay - 1);
+                }
             }
+            b.delivered(end, node, pid);
         }
+        if (event == FLUSH_ACKS && CommonState.getTime() >= ackDeadline) sendAcks(node, pid);
     }
 
-    private Map<Node, Integer> RRProposal(int loadToTransfer, List<Node> pvLess, double tentativeLoad, int pid) {
-        Map<Node, Integer> proposals = new HashMap<>();
-        // l36-l37: setting tvLess and leftLoad_to_transfer
-        List<Node> tvLess = new ArrayList<>(pvLess);
-        int leftLoad = loadToTransfer;
+    private void proposal(Node node, int pid, Node sender, int loadToTransfer, double tentativeLoad, long sentAt) {
+        double oldLoad = this.value;
+        // l25-l29:receive and respond to proposals
+        if (tentativeLoad > this.value) {
+            int deal = Math.min(
+                    (int) (tentativeLoad - this.value), //  the actual transferable load
+                    loadToTransfer
+            );
+            // l27: sending Ack
+            reply(node, pid, sender, deal, sentAt);
+            // l28-l29: updating lastReceivedLoad and tload(p)
+            lastReceivedLoad += deal; // received loads
+            //        this.value += deal;
+            this.tLoad += deal; // update tentativeLoad**
+
+            if (trace.enabled) trace.accept(CommonState.getTime(), node.getID(),
+                    sender.getID(), deal, oldLoad, this.value);
+            if (counters.enabled) counters.accept(CommonState.getTime(), deal);
+
+        } else {
+            // l30-31: refuse the proposal
+            if (trace.enabled) trace.reject(CommonState.getTime(), node.getID(),
+                    sender.getID(), tentativeLoad, this.tLoad);
+            if (counters.enabled) counters.reject(CommonState.getTime());
+
+            reply(node, pid, sender, 0, sentAt);
+        }
+    }
 
-//        if (loadToTransfer < 0) {
-//            return proposals; // empty proposal for nothing to transfer
-//        }
-        // l38: while loop when  |TVless| > 0 ∧ LeftLoadToTransfer > 0
-        while (!tvLess.isEmpty() && leftLoad > 0) {
-            // l39: set m as max of tvless
-            Node maxNode = Collections.max(tvLess, Comparator.comparingDouble(
-                    q -> ((SelfED) q.getProtocol(pid)).tLoad));
-            double m = ((SelfED) maxNode.getProtocol(pid)).tLoad;
-
-            // set transferPerNode as tentativeLoad - m, the biggest load that every node can afford
-            int transferPerNode = (int) (tentativeLoad - m);
-            if (transferPerNode <= 0) break;
-
-            // l40: check can the node transfer to all nodes in tvless
-            if ( transferPerNode * tvLess.size() <= leftLoad) {
-                // l41.a: proposal all load to tvless and update leftLoad
-                for (Node q : tvLess) {
-                    proposals.put(q, transferPerNode);
-                    leftLoad -= transferPerNode;
-
-                    // update the load after transferring
-//                    double newLoad = ((SelfED) q.getProtocol(pid)).tLoad + transferPerNode;
-//                    ((SelfED) q.getProtocol(pid)).tLoad = newLoad;
-                }
-                // l41.b: remove the nodes that equals TentativeLoad from tvless
-                List<Node> toRemove = new ArrayList<>();
-                for (Node q : tvLess) {
-                    if (((SelfED) q.getProtocol(pid)).tLoad == tentativeLoad) {
-                        toRemove.add(q);
-                    }
-                }
-                tvLess.removeAll(toRemove);
-            } else {
-                // l42-43: using Round-Robin for residual load
-                int currentIndex = 0;  // using index to control the cycle
-                while (leftLoad > 0 && !tvLess.isEmpty()) {
-                    Node q = tvLess.get(currentIndex);
-                    double qLoad = ((SelfED) q.getProtocol(pid)).tLoad;
-                    int maxTransfer = (int) (tentativeLoad - qLoad);
-                    if (maxTransfer <= 0) {
-                        tvLess.remove(currentIndex);
-                        continue;
-                    }
-                    // allocate 1 in each round and update the receiver node
-                    int transfer = Math.min(1, Math.min(maxTransfer, leftLoad));
-                    //    int transfer = Math.min(maxTransfer, leftLoad);
-                    proposals.merge(q, transfer, Integer::sum);
-                    leftLoad -= transfer;
-                    ((SelfED) q.getProtocol(pid)).tLoad += transfer;
-                    if (((SelfED) q.getProtocol(pid)).tLoad >= tentativeLoad) {
-                        tvLess.remove(currentIndex);
-                    } else {
-                        currentIndex++;
-                    }
-                    // reset index if next round is needed
-                    if (currentIndex >= tvLess.size()) {
-                        currentIndex = 0;
-                    }
-                }
+    private void reply(Node node, int pid, Node sender, int deal, long proposedAt) {
+        if (batch) {
+            if (acks == null) acks = new MessageBatch(true);
+            acks.add(sender, deal, proposedAt);
+            return;
+        }
+        Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
+        tr.send(node, sender, AckMsg.obtain(deal, node, proposedAt), pid);
+    }
+
+    private void ack(Node node, int pid, Node sender, int deal, long proposedAt) {
+        double oldLoad = this.value;
+        if (counters.enabled) counters.ack(CommonState.getTime(), proposedAt);
+//            int expected = expectedTransfers.getOrDefault(sender, 0);
+//            int actualDeal = Math.min(deal, expected); // avoid over-accumulation
+//            this.lastGaveLoad += actualDeal;
+        this.lastGaveLoad += deal;
+        this.tLoad -= deal;
+        if (compact) {
+            if (trace.enabled) {
+                trace.ack(CommonState.getTime(), node.getID(), sender.getID(), deal, this.tLoad);
+                if (pending == 1) trace.finalized(CommonState.getTime(), node.getID(),
+                        lastGaveLoad, oldLoad, this.tLoad);
             }
+            pending--;
+            return;
+        }
+        pendingAcks.put(sender, true); // mark Acks as true
+        pending--;
+
+        if (trace.enabled) trace.ack(CommonState.getTime(), node.getID(), sender.getID(),
+                deal, this.tLoad);
+
+        // Adding part: if all Acks arrive, update the final value and load.
+        if (!pendingAcks.containsValue(false)) {
+            //         this.value = this.value - lastGaveLoad; // update the final load
+            //         this.tLoad = this.value; // and update tload
+
+            pendingAcks.clear();
+            expectedTransfers.clear();
+            //     lastGaveLoad = 0; // empty for the use in next round
+            if (trace.enabled) trace.finalized(CommonState.getTime(), node.getID(),
+                    lastGaveLoad, oldLoad, this.tLoad);
+
+        }
+    }
+
+    /**
+     * Holds the Acks until <code>deadline</code>, the last time they can
+     * leave and still reach their proposer when they would without batching.
+     */
+    private void holdAcks(Node node, int pid, long deadline) {
+        long now = CommonState.getTime();
+        boolean cycleInTime = now < nextCycleAt && nextCycleAt <= deadline; // it sends them
+        if (deadline <= now) {
+            sendAcks(node, pid);
+        } else if (!cycleInTime && deadline < ackDeadline) {
+            ackDeadline = deadline;
+            EDSimulator.add(deadline - now, FLUSH_ACKS, node, pid);
+        }
+    }
+
+    private void sendAcks(Node node, int pid) {
+        ackDeadline = Long.MAX_VALUE;
+        if (acks == null || acks.size == 0) return;
+        acks.send(node, pid, (Transport) node.getProtocol(FastConfig.getTransport(pid)), loss);
+    }
+
+    private void sendProposals(Node node, int pid, Transport tr, double tentativeLoad) {
+        outgoing.tentativeLoad = tentativeLoad;
+        outgoing.send(node, pid, tr, loss);
+    }
+
+    Map<Node, Integer> RRProposal(int loadToTransfer, List<Node> pvLess, double tentativeLoad, int pid) {
+        Map<Node, Integer> proposals = new HashMap<>();
+        // l36-l43 on the tentative loads of TV_less, see WaterFill
+        int n = pvLess.size();
+        Node first = null;
+        WaterFill wf = waterFill.ensure(n);
+        for (int k = 0; k < n; k++) {
+            wf.tLoad[k] = ((SelfED) pvLess.get(k).getProtocol(pid)).tLoad;
+        }
+        wf.allocate(n, tentativeLoad, loadToTransfer);
+        for (int k = 0; k < n; k++) {
+            Node q = pvLess.get(k);
+            ((SelfED) q.getProtocol(pid)).tLoad = wf.tLoad[k]; // round-robin updates the receivers
+            if (wf.amount[k] == 0) continue;
+            if (first == null) first = q;
+            if (wf.put) proposals.put(q, wf.amount[k]);
+            else proposals.merge(q, wf.amount[k], Integer::sum);
+        }
+        // the unit-step loop called merge once per unit, and merge grows the
+        // table before the call, even for a key already present. This call adds
+        // nothing (0 to a present key); it only replays that lazy resize, so
+        // the table size and the send order are those of the unit-step loop.
+        // It depends on the OpenJDK HashMap, see HashOrder.
+        if (!wf.put && wf.rrUnits > proposals.size()) {
+            proposals.merge(first, 0, Integer::sum);
         }
         assert !pendingAcks.containsValue(false) : "Some Acks are missing!";
         return proposals;
     }
+//--------------------------------------------------------------------------
+// compact mode
+//--------------------------------------------------------------------------
+
+    /**
+     * Same as the map based cycle, but on neighbors resolved once into arrays
+     * and on scratch buffers shared by all instances, so that apart from the
+     * messages a steady-state cycle allocates nothing. Proposals are sent in
+     * the order the HashMap of {@link #RRProposal} iterated them, so the
+     * output for a given seed is identical.
+     */
+    private void nextCycleCompact(Node node, int pid) {
+        // l5-l8
+        double oldValue = this.value;
+        this.value = this.value + lastReceivedLoad - lastGaveLoad;
+        if (this.value != oldValue) LoadMetrics.valueChanged(pid, node, oldValue, this.value);
+        lastReceivedLoad = 0;
+        lastGaveLoad = 0;
+        tLoad = this.value;
+
+        Linkable linkable = (Linkable) node.getProtocol(FastConfig.getLinkable(pid));
+        int degree = linkable.degree();
+        if (degree == 0) return;
+        if (nbr == null || nbr.length != degree) resolveNeighbors(linkable, pid);
+        Scratch s = scratch.ensure(degree);
+
+        // l9-l13: V_less and its first neighbor with the smallest load
+        int[] less = s.less;
+        int nLess = 0;
+        int min = -1;
+        for (int i = 0; i < degree; i++) {
+            double qLoad = nbr[i].value;
+            if (qLoad < this.value) {
+                less[nLess++] = i;
+                if (min < 0 || qLoad < nbr[min].value) min = i;
+            }
+        }
+        if (nLess == 0) return;
+
+        // l14-15
+        double minLoad = nbr[min].value;
+        int loadToTransfer = Math.max(0, (int) Math.ceil((tLoad - minLoad) / 2));
+        double tentativeLoad = tLoad - loadToTransfer;
+
+        // l16-l18: PV_less, filtered in place
+        int nPv = 0;
+        for (int k = 0; k < nLess; k++) {
+            if (nbr[less[k]].value < tentativeLoad) less[nPv++] = less[k];
+        }
+        // l19
+        int nProposals = rrProposalCompact(loadToTransfer, less, nPv, tentativeLoad, s);
+
+        if (trace.enabled) trace.cycle(CommonState.getTime(), node.getID(), nbrNode[min].getID(),
+                loadToTransfer, this.value, minLoad);
+
+        // l20-l23
+        int[] order = idHash
+                ? s.hashOrder.order(nbrHash, s.proposed, nProposals, s.merges)
+                : s.replay(nbrNode, s.proposed, nProposals, s.merges);
+        Transport tr = (Transport) node.getProtocol(FastConfig.getTransport(pid));
+        for (int k = 0; k < nProposals; k++) {
+            int i = order[k];
+            int transfer = s.offer[i];
+            if (batch) outgoing.add(nbrNode[i], transfer);
+            else tr.send(node, nbrNode[i], ProposalMsg.obtain(transfer, tentativeLoad, node), pid);
+            pending++;
+            if (trace.enabled) trace.proposal(CommonState.getTime(), node.getID(), nbrNode[i].getID(),
+                    transfer, tentativeLoad);
+        }
+        if (batch) sendProposals(node, pid, tr, tentativeLoad);
+        if (counters.enabled) counters.proposals(CommonState.getTime(), nProposals, waterFill.unitSteps);
+    }
+
+    /**
+     * Compact mode sends in the order HashOrder computes, which must be the
+     * one of the map based cycle.
+     */
+    private static boolean hashOrderMatches(String prefix) {
+        if (HashOrder.MATCHES) return true;
+        System.err.println("SelfED: the HashMap of this JDK does not iterate as HashOrder expects, "
+                + prefix + "." + PAR_COMPACT + " is ignored");
+        return false;
+    }
+
+    private void resolveNeighbors(Linkable linkable, int pid) {
+        int degree = linkable.degree();
+        nbr = new SelfED[degree];
+        nbrNode = new Node[degree];
+        nbrHash = new int[degree];
+        idHash = true;
+        for (int i = 0; i < degree; i++) {
+            nbrNode[i] = linkable.getNeighbor(i);
+            nbr[i] = (SelfED) nbrNode[i].getProtocol(pid);
+            nbrHash[i] = nbrNode[i].hashCode();
+            idHash &= nbrHash[i] == (int) nbrNode[i].getID();
+        }
+    }
+
+    /**
+     * {@link #RRProposal} on neighbor positions. The proposal for position i
+     * is left in <code>s.offer[i]</code>; the positions that got one are
+     * listed in <code>s.proposed</code> in insertion order, which is always
+     * PV_less order. <code>s.merges</code> counts the round-robin
+     * <code>merge</code> calls, 0 if the entries were inserted by
+     * <code>put</code>.
+     *
+     * @return the number of proposals
+     */
+    private int rrProposalCompact(int loadToTransfer, int[] pvLess, int nPv, double tentativeLoad, Scratch s) {
+        WaterFill wf = waterFill.ensure(nPv);
+        for (int k = 0; k < nPv; k++) wf.tLoad[k] = nbr[pvLess[k]].tLoad;
+        wf.allocate(nPv, tentativeLoad, loadToTransfer);
+        int n = 0;
+        for (int k = 0; k < nPv; k++) {
+            int i = pvLess[k];
+            nbr[i].tLoad = wf.tLoad[k];
+            if (wf.amount[k] > 0) {
+                s.offer[i] = wf.amount[k];
+                s.proposed[n++] = i;
+            }
+        }
+        s.merges = wf.put ? 0 : wf.rrUnits;
+        return n;
+    }
+
+    /**
+     * Buffers reused by every cycle in compact mode, grown to the largest
+     * degree seen.
+     */
+    private static final class Scratch {
+
+        int[] less = new int[0];
+        int[] offer = new int[0];
+        int[] proposed = new int[0];
+        int[] order = new int[0];
+        int merges;
+        final HashOrder hashOrder = new HashOrder();
+
+        Scratch ensure(int degree) {
+            if (less.length < degree) {
+                less = new int[degree];
+                offer = new int[degree];
+                proposed = new int[degree];
+                order = new int[degree];
+            }
+            return this;
+        }
+
+        /**
+         * The iteration order of a HashMap built from the positions in
+         * <code>pos</code>, for nodes whose hash codes are not their IDs.
+         */
+        int[] replay(Node[] nodes, int[] pos, int n, int merges) {
+            Map<Node, Integer> map = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                if (merges > 0) map.merge(nodes[pos[i]], pos[i], (a, b) -> a);
+                else map.put(nodes[pos[i]], pos[i]);
+            }
+            for (int k = n; k < merges; k++) map.merge(nodes[pos[0]], pos[0], (a, b) -> a);
+            int k = 0;
+            for (int p : map.values()) order[k++] = p;
+            return order;
+        }
+    }
+
+//--------------------------------------------------------------------------
+// snapshot
+//--------------------------------------------------------------------------
+
+    int lastReceivedLoad() {
+        return lastReceivedLoad;
+    }
+
+    int lastGaveLoad() {
+        return lastGaveLoad;
+    }
+
+    /**
+     * Number of Acks still expected, including those of dropped messages.
+     */
+    int pendingCount() {
+        return pending;
+    }
+
+    /**
+     * Replaces the state of this node by a saved one. It expects no Acks:
+     * no message of the saved run is delivered in the restored one.
+     */
+    void restore(double value, double tLoad, int lastReceivedLoad, int lastGaveLoad) {
+        this.value = value;
+        this.tLoad = tLoad;
+        this.lastReceivedLoad = lastReceivedLoad;
+        this.lastGaveLoad = lastGaveLoad;
+        this.pending = 0;
+        pendingAcks.clear();
+        expectedTransfers.clear();
+        nbr = null;
+        if (acks != null) acks.size = 0;
+        ackDeadline = Long.MAX_VALUE;
+        nextCycleAt = -1;
+    }
+
+    /**
+     * Puts a proposal or Ack that is dropped instead of delivered back into
+     * its pool; other events are left alone.
+     */
+    static void recycle(Object event) {
+        if (event instanceof ProposalMsg proposal) proposal.recycle();
+        if (event instanceof AckMsg ack) ack.recycle();
+    }
+
+    /**
+     * A copy of a proposal or Ack, with its times: from the pool if
+     * <code>pooled</code>, otherwise a new one, which stays out of the pool
+     * unless delivered. Other events are returned as they are.
+     */
+    static Object copy(Object event, boolean pooled) {
+        if (event instanceof ProposalMsg p) {
+            ProposalMsg m = pooled ? ProposalMsg.obtain(p.loadToTransfer, p.tentativeLoad, p.sender)
+                    : new ProposalMsg(p.loadToTransfer, p.tentativeLoad, p.sender);
+            m.sentAt = p.sentAt;
+            return m;
+        }
+        if (event instanceof AckMsg a) {
+            return pooled ? AckMsg.obtain(a.deal, a.sender, a.proposedAt) : new AckMsg(a.deal, a.sender, a.proposedAt);
+        }
+        return event;
+    }
+
     public List<Node> getNeighbors(Node node, int pid) {
         Linkable linkable = (Linkable) node.getProtocol(FastConfig.getLinkable(pid));
         List<Node> neighbors = new ArrayList<>();
@@ -295,24 +609,70 @@ public class SelfED extends SingleValueHolder
  * sender node of type {@link peersim.core.Node}.
  */
 class ProposalMsg {
-    final int loadToTransfer; // load that the proposal transfers
-    final double tentativeLoad; // The tentative load of the sender
-    final Node sender;
+    int loadToTransfer; // load that the proposal transfers
+    double tentativeLoad; // The tentative load of the sender
+    Node sender;
+    long sentAt; // for the Ack round trip of SelfCounters
+
+    // delivered messages are reused, the simulation is single threaded
+    private ProposalMsg nextFree;
+    private static ProposalMsg free;
 
     public ProposalMsg(int loadToTransfer, double tentativeLoad, Node sender) {
         this.loadToTransfer = loadToTransfer;
         this.tentativeLoad = tentativeLoad;
         this.sender = sender;
+        this.sentAt = CommonState.getTime();
+    }
+
+    static ProposalMsg obtain(int loadToTransfer, double tentativeLoad, Node sender) {
+        ProposalMsg m = free;
+        if (m == null) return new ProposalMsg(loadToTransfer, tentativeLoad, sender);
+        free = m.nextFree;
+        m.nextFree = null;
+        m.loadToTransfer = loadToTransfer;
+        m.tentativeLoad = tentativeLoad;
+        m.sender = sender;
+        m.sentAt = CommonState.getTime();
+        return m;
+    }
+
+    void recycle() {
+        sender = null;
+        nextFree = free;
+        free = this;
     }
 }
 
 class AckMsg {
-    final int deal; // Actual agreed load
-    final Node sender;
+    int deal; // Actual agreed load
+    Node sender;
+    long proposedAt; // sentAt of the proposal it answers
 
-    public AckMsg(int deal, Node sender) {
+    private AckMsg nextFree;
+    private static AckMsg free;
+
+    public AckMsg(int deal, Node sender, long proposedAt) {
         this.deal = deal;
         this.sender = sender;
+        this.proposedAt = proposedAt;
+    }
+
+    static AckMsg obtain(int deal, Node sender, long proposedAt) {
+        AckMsg m = free;
+        if (m == null) return new AckMsg(deal, sender, proposedAt);
+        free = m.nextFree;
+        m.nextFree = null;
+        m.deal = deal;
+        m.sender = sender;
+        m.proposedAt = proposedAt;
+        return m;
+    }
+
+    void recycle() {
+        sender = null;
+        nextFree = free;
+        free = this;
     }
 }
 
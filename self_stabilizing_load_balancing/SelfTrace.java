@@ -0,0 +1,259 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Event tracing for {@link SelfED}, configured per protocol prefix.
+ * <p>
+ * Parameters (under the protocol prefix, e.g. <code>protocol.avg</code>):
+ * <ul>
+ * <li><code>trace</code>: <code>off</code> (default), <code>summary</code>
+ * (one line of event counts per cycle on stdout) or <code>full</code>
+ * (every event as a binary record, see below)</li>
+ * <li><code>trace.file</code>: output of the full mode, default
+ * <code>selfed_trace.bin</code></li>
+ * <li><code>trace.buffer</code>: ring buffer capacity in records, rounded
+ * up to a power of two, default 65536</li>
+ * </ul>
+ * In full mode events are written as fixed 40 byte records into a
+ * single-producer lock-free ring buffer which a background thread drains
+ * into the file. The file starts with the magic {@link #MAGIC} and a version
+ * int, followed by records of
+ * <code>long time, int type, int node, int peer, int amount, double a, double b</code>
+ * (big endian). {@link SelfTraceDecoder} turns the file back into the text
+ * lines SelfED used to print.
+ */
+public final class SelfTrace {
+
+    public enum Level { OFF, SUMMARY, FULL }
+
+    static final int MAGIC = 0x53455452; // "SETR"
+    static final int VERSION = 1;
+    static final int RECORD_BYTES = 40;
+
+    // record types
+    static final int CYCLE = 1;     // node, min neighbor, loadToTransfer, value, min load
+    static final int PROPOSAL = 2;  // node, receiver, transfer, tentative load
+    static final int ACCEPT = 3;    // node, sender, deal, old load, value
+    static final int REJECT = 4;    // node, sender, -, tentative load, tLoad
+    static final int ACK = 5;       // node, sender, deal, tLoad
+    static final int FINALIZE = 6;  // node, -, lastGaveLoad, old load, tLoad
+
+    private static final String PAR_TRACE = "trace";
+    private static final String PAR_FILE = "trace.file";
+    private static final String PAR_BUFFER = "trace.buffer";
+    private static final String PAR_STEP = "step";
+
+    private static final Map<String, SelfTrace> byPrefix = new HashMap<>();
+
+    private static final SelfTrace OFF = new SelfTrace(Level.OFF, 1, null, 0);
+
+    /** True unless the level is {@link Level#OFF}; the only check on the hot path. */
+    public final boolean enabled;
+    private final Level level;
+    private final long step;
+
+    // summary counters of the cycle in progress
+    private long summaryCycle = -1;
+    private int proposals, accepted, rejected, acks, finalized;
+    private long moved;
+
+    // full mode ring buffer, 5 longs per record
+    private final long[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next record to drain
+    private final AtomicLong tail = new AtomicLong(); // next record to publish
+    private final Writer writer;
+    private boolean closed;
+
+    /**
+     * Returns the tracer configured for the given protocol prefix. All
+     * instances of the protocol (clones of the prototype) share it.
+     */
+    public static synchronized SelfTrace forPrefix(String prefix) {
+        SelfTrace trace = byPrefix.get(prefix);
+        if (trace == null) {
+            Level level = Level.valueOf(
+                    Configuration.getString(prefix + "." + PAR_TRACE, "off").toUpperCase());
+            if (level == Level.OFF) {
+                trace = OFF;
+            } else {
+                trace = new SelfTrace(level,
+                        Math.max(1, Configuration.getLong(prefix + "." + PAR_STEP, 1)),
+                        Configuration.getString(prefix + "." + PAR_FILE, "selfed_trace.bin"),
+                        Configuration.getInt(prefix + "." + PAR_BUFFER, 1 << 16));
+                // flushes the trace file, or prints the summary of the last cycle
+                Runtime.getRuntime().addShutdownHook(new Thread(trace::close));
+            }
+            byPrefix.put(prefix, trace);
+        }
+        return trace;
+    }
+
+    private SelfTrace(Level level, long step, String file, int capacity) {
+        this.level = level;
+        this.enabled = level != Level.OFF;
+        this.step = step;
+        if (level == Level.FULL) {
+            int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            ring = new long[slots * 5];
+            mask = slots - 1;
+            writer = new Writer(file);
+            writer.start();
+        } else {
+            ring = null;
+            mask = 0;
+            writer = null;
+        }
+    }
+
+//--------------------------------------------------------------------------
+// events
+//--------------------------------------------------------------------------
+
+    void cycle(long time, long node, long minNode, int loadToTransfer, double value, double minLoad) {
+        if (level == Level.FULL) put(time, CYCLE, node, minNode, loadToTransfer, value, minLoad);
+        else count(time);
+    }
+
+    void proposal(long time, long node, long receiver, int transfer, double tentativeLoad) {
+        if (level == Level.FULL) put(time, PROPOSAL, node, receiver, transfer, tentativeLoad, 0);
+        else { count(time); proposals++; }
+    }
+
+    void accept(long time, long node, long sender, int deal, double oldLoad, double value) {
+        if (level == Level.FULL) put(time, ACCEPT, node, sender, deal, oldLoad, value);
+        else { count(time); accepted++; moved += deal; }
+    }
+
+    void reject(long time, long node, long sender, double tentativeLoad, double tLoad) {
+        if (level == Level.FULL) put(time, REJECT, node, sender, 0, tentativeLoad, tLoad);
+        else { count(time); rejected++; }
+    }
+
+    void ack(long time, long node, long sender, int deal, double tLoad) {
+        if (level == Level.FULL) put(time, ACK, node, sender, deal, tLoad, 0);
+        else { count(time); acks++; }
+    }
+
+    void finalized(long time, long node, int lastGaveLoad, double oldLoad, double tLoad) {
+        if (level == Level.FULL) put(time, FINALIZE, node, 0, lastGaveLoad, oldLoad, tLoad);
+        else { count(time); finalized++; }
+    }
+
+//--------------------------------------------------------------------------
+// summary mode
+//--------------------------------------------------------------------------
+
+    private void count(long time) {
+        long cycle = time / step;
+        if (cycle != summaryCycle) {
+            if (summaryCycle >= 0) printSummary();
+            summaryCycle = cycle;
+        }
+    }
+
+    private void printSummary() {
+        System.out.printf("[Cycle %d] proposals %d, accepted %d, rejected %d, acks %d, finalized %d, load moved %d%n",
+                summaryCycle * step, proposals, accepted, rejected, acks, finalized, moved);
+        proposals = accepted = rejected = acks = finalized = 0;
+        moved = 0;
+    }
+
+//--------------------------------------------------------------------------
+// full mode
+//--------------------------------------------------------------------------
+
+    private void put(long time, int type, long node, long peer, int amount, double a, double b) {
+        long t = tail.get();
+        while (t - head.get() > mask) { // full, wait for the writer
+            if (!writer.isAlive()) return;
+            Thread.onSpinWait();
+            LockSupport.unpark(writer);
+        }
+        int i = (int) (t & mask) * 5;
+        ring[i] = time;
+        ring[i + 1] = ((long) type << 32) | (node & 0xffffffffL);
+        ring[i + 2] = (peer << 32) | (amount & 0xffffffffL);
+        ring[i + 3] = Double.doubleToRawLongBits(a);
+        ring[i + 4] = Double.doubleToRawLongBits(b);
+        tail.lazySet(t + 1);
+    }
+
+    /** Flushes outstanding events. Called from a shutdown hook. */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (writer != null) {
+            writer.closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (level == Level.SUMMARY && summaryCycle >= 0) {
+            printSummary();
+        }
+    }
+
+    private final class Writer extends Thread {
+
+        private final String file;
+        private volatile boolean closing;
+
+        Writer(String file) {
+            super("selfed-trace-writer");
+            setDaemon(true);
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(RECORD_BYTES * 4096);
+            try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                buf.putInt(MAGIC).putInt(VERSION);
+                drain(ch, buf);
+                while (true) {
+                    boolean last = closing;
+                    long h = head.get();
+                    long t = tail.get();
+                    for (; h < t; h++) {
+                        int i = (int) (h & mask) * 5;
+                        buf.putLong(ring[i])
+                                .putInt((int) (ring[i + 1] >>> 32)).putInt((int) ring[i + 1])
+                                .putInt((int) (ring[i + 2] >>> 32)).putInt((int) ring[i + 2])
+                                .putLong(ring[i + 3]).putLong(ring[i + 4]);
+                        if (!buf.hasRemaining()) {
+                            head.lazySet(h + 1);
+                            drain(ch, buf);
+                        }
+                    }
+                    head.lazySet(h);
+                    drain(ch, buf);
+                    if (last) break;
+                    if (h == tail.get()) LockSupport.parkNanos(1_000_000L);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing trace file " + file + ": " + e.getMessage());
+            }
+        }
+
+        private void drain(FileChannel ch, ByteBuffer buf) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+    }
+}
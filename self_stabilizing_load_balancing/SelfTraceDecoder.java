@@ -0,0 +1,83 @@
+package self_stabilizing_load_balancing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Turns a binary trace written by {@link SelfTrace} in full mode back into
+ * the text lines {@link SelfED} used to print on stdout.
+ * <p>
+ * Usage: <code>java self_stabilizing_load_balancing.SelfTraceDecoder selfed_trace.bin</code>
+ */
+public class SelfTraceDecoder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: SelfTraceDecoder <trace file>");
+            System.exit(1);
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(args[0]), 1 << 16))) {
+            if (in.readInt() != SelfTrace.MAGIC) {
+                throw new IOException(args[0] + " is not a SelfED trace file");
+            }
+            int version = in.readInt();
+            if (version != SelfTrace.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                decode(out, time, in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readDouble(), in.readDouble());
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    static void decode(PrintStream out, long time, int type, int node, int peer, int amount,
+                       double a, double b) {
+        switch (type) {
+            case SelfTrace.CYCLE:
+                // SelfED printed loadToTransfer without a line break right before this line
+                out.print(amount);
+                out.printf("[Cycle %d] Node %d current load: %.2f, min neighbor (Node %d) load: %.2f%n",
+                        time, node, a, peer, b);
+                break;
+            case SelfTrace.PROPOSAL:
+                out.printf("[Cycle %d] Node %d sends proposal to Node %d: transfer %d, tentative load %.2f%n",
+                        time, node, peer, amount, a);
+                break;
+            case SelfTrace.ACCEPT:
+                out.printf("[Cycle %d] Node %d accepted proposal from Node %d: load %.2f -> %.2f (received %d)%n",
+                        time, node, peer, a, b, amount);
+                break;
+            case SelfTrace.REJECT:
+                out.printf("[Cycle %d] Node %d rejected proposal from Node %d (tentative load %.2f <= current load %.2f)%n",
+                        time, node, peer, a, b);
+                break;
+            case SelfTrace.ACK:
+                out.printf("[Cycle %d] Node %d received Ack from Node %d: gave %d, current tentative load: %.2f%n",
+                        time, node, peer, amount, a);
+                break;
+            case SelfTrace.FINALIZE:
+                out.printf("[Cycle %d] lastGaveLoad=%d%n", time, amount);
+                out.printf("[Cycle %d] Node %d finalized load update: %.2f -> %.2f%n",
+                        time, node, a, b);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown trace record type " + type);
+        }
+    }
+}
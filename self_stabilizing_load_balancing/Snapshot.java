@@ -0,0 +1,222 @@
+package self_stabilizing_load_balancing;
+
+import peersim.core.CommonState;
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.core.Node;
+import peersim.util.ExtendedRandom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * State of a SelfED network at one point of time: the loads of every node,
+ * its pending Acks, its links and the state of the random generator.
+ * Written by {@link SnapshotExport}, loaded back by {@link SnapshotRestore}.
+ * <p>
+ * File layout, little endian: <code>int magic ("SNAP"), int version, int n,
+ * int r, long time, long m, long p</code>, then <code>long id[n]</code>,
+ * <code>double value[n]</code>, <code>double tLoad[n]</code>, <code>int
+ * lastReceivedLoad[n]</code>, <code>int lastGaveLoad[n]</code>, <code>int
+ * pending[n]</code> (Acks still expected, <code>p</code> in all; only
+ * reported, the restored nodes expect none), the links
+ * as in {@link CsrGraph} (<code>int offset[n + 1]</code>, <code>int
+ * neighbor[m]</code>) and <code>r</code> bytes of the serialized
+ * {@link CommonState#r}.
+ * <p>
+ * Messages in the event queue are not part of the state: an Ack still on
+ * its way when the snapshot is taken never reaches its proposer in the
+ * restored run, so the load its receiver accepted is counted twice.
+ * SnapshotExport therefore writes only when no Ack is pending, unless
+ * allowed otherwise.
+ */
+final class Snapshot {
+
+    static final int MAGIC = 0x534E4150; // "SNAP"
+    static final int VERSION = 1;
+    private static final int HEADER = 40;
+    private static final int CHUNK = 1 << 20;
+
+    final int n;
+    final long time;
+    final long links;
+    final long pending;
+    private final int randomLength;
+    private final MappedFile file;
+
+    private Snapshot(MappedFile file, String filename) throws IOException {
+        this.file = file;
+        long size = file.size;
+        if (size < HEADER || file.getInt(0) != MAGIC) throw new IOException(filename + " is not a snapshot file");
+        int version = file.getInt(4);
+        if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+        n = file.getInt(8);
+        randomLength = file.getInt(12);
+        time = file.getLong(16);
+        links = file.getLong(24);
+        pending = file.getLong(32);
+        if (n < 0 || randomLength < 0 || links < 0 || links > Integer.MAX_VALUE || pending < 0
+                || size != randomAt() + randomLength) {
+            throw new IOException(filename + " is truncated or corrupt");
+        }
+    }
+
+    /**
+     * Writes the state of the network, for the SelfED protocol
+     * <code>pid</code> and the links of <code>linkablePid</code>.
+     *
+     * @return the number of pending Acks
+     */
+    static long write(String filename, long time, int pid, int linkablePid) throws IOException {
+        CsrGraph graph = CsrGraph.fromNetwork(linkablePid);
+        int n = graph.size();
+        SelfED[] protocol = new SelfED[n];
+        long pending = 0;
+        for (int i = 0; i < n; i++) {
+            protocol[i] = (SelfED) Network.get(i).getProtocol(pid);
+            pending += protocol[i].pendingCount();
+        }
+        byte[] random = serialize(CommonState.r);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(random.length)
+                    .putLong(time).putLong(graph.edges()).putLong(pending);
+            for (int i = 0; i < n; i++) room(buf, channel, 8).putLong(graph.id(i));
+            for (int i = 0; i < n; i++) room(buf, channel, 8).putDouble(protocol[i].getValue());
+            for (int i = 0; i < n; i++) room(buf, channel, 8).putDouble(protocol[i].tLoad);
+            for (int i = 0; i < n; i++) room(buf, channel, 4).putInt(protocol[i].lastReceivedLoad());
+            for (int i = 0; i < n; i++) room(buf, channel, 4).putInt(protocol[i].lastGaveLoad());
+            for (int i = 0; i < n; i++) room(buf, channel, 4).putInt(protocol[i].pendingCount());
+            CsrGraph.putInts(graph.offset, n + 1, buf, channel);
+            CsrGraph.putInts(graph.neighbor, graph.edges(), buf, channel);
+            for (int k = 0; k < random.length; ) {
+                int len = Math.min(random.length - k, room(buf, channel, 1).remaining());
+                buf.put(random, k, len);
+                k += len;
+            }
+            CsrGraph.drain(buf, channel);
+        }
+        return pending;
+    }
+
+    /**
+     * The number of Acks the nodes of the network still expect, in flight
+     * or lost.
+     */
+    static long pending(int pid) {
+        long pending = 0;
+        for (int i = 0; i < Network.size(); i++) {
+            pending += ((SelfED) Network.get(i).getProtocol(pid)).pendingCount();
+        }
+        return pending;
+    }
+
+    private static ByteBuffer room(ByteBuffer buf, FileChannel channel, int bytes) throws IOException {
+        if (buf.remaining() < bytes) CsrGraph.drain(buf, channel);
+        return buf;
+    }
+
+    /**
+     * Maps a snapshot file; nothing is read besides the header until
+     * {@link #restore}.
+     */
+    static Snapshot map(String filename) throws IOException {
+        return new Snapshot(MappedFile.map(filename), filename);
+    }
+
+    /**
+     * Sets the state of every node of the network, which must have
+     * <code>n</code> nodes, from the snapshot. Links are added only if
+     * <code>links</code> is set, to nodes that have none yet; the random
+     * generator is replaced only if <code>random</code> is set.
+     */
+    void restore(int pid, int linkablePid, boolean links, boolean random) throws IOException {
+        if (Network.size() != n) {
+            throw new IOException("the snapshot has " + n + " nodes, the network " + Network.size());
+        }
+        for (int i = 0; i < n; i++) {
+            Node node = Network.get(i);
+            SelfED protocol = (SelfED) node.getProtocol(pid);
+            double oldValue = protocol.getValue();
+            protocol.restore(file.getDouble(valueAt() + 8L * i), file.getDouble(tLoadAt() + 8L * i),
+                    file.getInt(receivedAt() + 4L * i), file.getInt(gaveAt() + 4L * i));
+            if (protocol.getValue() != oldValue) {
+                LoadMetrics.valueChanged(pid, node, oldValue, protocol.getValue());
+            }
+            if (!links) continue;
+            Linkable linkable = (Linkable) node.getProtocol(linkablePid);
+            if (linkable.degree() > 0) {
+                throw new IOException("node " + i + " already has links, leave out the wiring initializer"
+                        + " or do not restore the links");
+            }
+            int end = file.getInt(offsetAt() + 4L * (i + 1));
+            for (int k = file.getInt(offsetAt() + 4L * i); k < end; k++) {
+                linkable.addNeighbor(Network.get(file.getInt(neighborAt() + 4L * k)));
+            }
+        }
+        if (random) {
+            byte[] bytes = new byte[randomLength];
+            for (int k = 0; k < randomLength; k++) bytes[k] = file.get(randomAt() + k);
+            CommonState.r = deserialize(bytes);
+        }
+    }
+
+    static byte[] serialize(ExtendedRandom r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(r);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ExtendedRandom deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (ExtendedRandom) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("unreadable random generator state: " + e.getMessage());
+        }
+    }
+
+    // section positions
+    private long valueAt() {
+        return HEADER + 8L * n;
+    }
+
+    private long tLoadAt() {
+        return valueAt() + 8L * n;
+    }
+
+    private long receivedAt() {
+        return tLoadAt() + 8L * n;
+    }
+
+    private long gaveAt() {
+        return receivedAt() + 4L * n;
+    }
+
+    private long pendingAt() {
+        return gaveAt() + 4L * n;
+    }
+
+    private long offsetAt() {
+        return pendingAt() + 4L * n;
+    }
+
+    private long neighborAt() {
+        return offsetAt() + 4L * (n + 1);
+    }
+
+    private long randomAt() {
+        return neighborAt() + 4 * links;
+    }
+}
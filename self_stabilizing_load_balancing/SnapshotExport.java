@@ -0,0 +1,73 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.FastConfig;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Network;
+
+import java.io.IOException;
+
+/**
+ * Checkpoint: writes the state of a SelfED network to a {@link Snapshot}
+ * file, to resume the run or start other runs from it with
+ * {@link SnapshotRestore}.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>protocol</code>: the SelfED protocol</li>
+ * <li><code>linkable</code>: the protocol holding the links, by default
+ * the linkable of <code>protocol</code></li>
+ * <li><code>output_filename</code>: default <code>snapshot.bin</code>; a
+ * <code>%d</code> in it is replaced by the time, so that every checkpoint
+ * of a periodic control is kept</li>
+ * <li><code>allow_pending</code>: write the snapshot even if Acks are
+ * pending, default false</li>
+ * <li><code>enabled</code>: false turns the control off, also at
+ * <code>at</code> and <code>FINAL</code>; default true</li>
+ * </ul>
+ * Acks in flight are lost in the restored run, and the load their
+ * receivers accepted is not taken off their proposers. So by default no
+ * snapshot is written while any node still expects an Ack; a periodic
+ * control tries again at its next step. With a lossy transport the lost
+ * messages are never answered and stay pending, so such runs need
+ * <code>allow_pending</code>.
+ */
+public class SnapshotExport implements Control {
+
+    private final int pid;
+    private final int linkablePid;
+    private final String outputFilename;
+    private final boolean allowPending;
+    private final boolean enabled;
+
+    public SnapshotExport(String prefix) {
+        this.pid = Configuration.getPid(prefix + ".protocol");
+        this.linkablePid = Configuration.contains(prefix + ".linkable")
+                ? Configuration.getPid(prefix + ".linkable") : FastConfig.getLinkable(pid);
+        this.outputFilename = Configuration.getString(prefix + ".output_filename", "snapshot.bin");
+        this.allowPending = Configuration.getBoolean(prefix + ".allow_pending", false);
+        this.enabled = Configuration.getBoolean(prefix + ".enabled", true);
+    }
+
+    public boolean execute() {
+        if (!enabled) return false;
+        long start = System.nanoTime();
+        long time = CommonState.getTime();
+        String filename = outputFilename.replace("%d", Long.toString(time));
+        long expected = allowPending ? 0 : Snapshot.pending(pid);
+        if (expected > 0) {
+            System.err.println("Snapshot: " + expected + " Acks pending at time " + time + ", " + filename
+                    + " not written (allow_pending writes it anyway)");
+            return false;
+        }
+        try {
+            long pending = Snapshot.write(filename, time, pid, linkablePid);
+            System.out.printf("[Snapshot] %d nodes, %d pending Acks at time %d written to %s in %d ms%n",
+                    Network.size(), pending, time, filename, (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+        return false;
+    }
+}
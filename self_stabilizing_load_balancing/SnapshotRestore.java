@@ -0,0 +1,66 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.FastConfig;
+import peersim.core.Control;
+
+import java.io.IOException;
+
+/**
+ * Initializer that sets the state of a SelfED network from a
+ * {@link Snapshot} file written by {@link SnapshotExport}, instead of
+ * wiring the graph and distributing the loads again. The file is memory
+ * mapped and read straight into the nodes.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>protocol</code>: the SelfED protocol</li>
+ * <li><code>linkable</code>: the protocol receiving the links, by default
+ * the linkable of <code>protocol</code></li>
+ * <li><code>input_filename</code>: default <code>snapshot.bin</code></li>
+ * <li><code>links</code>: restore the links, default true; the nodes must
+ * not have links yet, so leave the wiring initializer out</li>
+ * <li><code>random</code>: continue the random numbers of the saved run,
+ * default true; false keeps those of <code>random.seed</code>, to fork
+ * different runs from one snapshot</li>
+ * </ul>
+ * The network size must be the one of the saved run. The time starts
+ * again at 0, and initializers listed after this one can change the
+ * restored loads.
+ */
+public class SnapshotRestore implements Control {
+
+    private final int pid;
+    private final int linkablePid;
+    private final String inputFilename;
+    private final boolean links;
+    private final boolean random;
+
+    public SnapshotRestore(String prefix) {
+        this.pid = Configuration.getPid(prefix + ".protocol");
+        this.linkablePid = Configuration.contains(prefix + ".linkable")
+                ? Configuration.getPid(prefix + ".linkable") : FastConfig.getLinkable(pid);
+        this.inputFilename = Configuration.getString(prefix + ".input_filename", "snapshot.bin");
+        this.links = Configuration.getBoolean(prefix + ".links", true);
+        this.random = Configuration.getBoolean(prefix + ".random", true);
+    }
+
+    public boolean execute() {
+        long start = System.nanoTime();
+        try {
+            Snapshot snapshot = Snapshot.map(inputFilename);
+            snapshot.restore(pid, linkablePid, links, random);
+            System.out.printf("[Snapshot] %d nodes, %d links of time %d restored from %s in %d ms%n",
+                    snapshot.n, links ? snapshot.links : 0, snapshot.time, inputFilename,
+                    (System.nanoTime() - start) / 1000000);
+            if (snapshot.pending > 0) {
+                System.out.println("[Snapshot] " + snapshot.pending + " Acks were pending when it was written,"
+                        + " the restored nodes expect none");
+            }
+        } catch (IOException e) {
+            // going on would run the unrestored network
+            throw new IllegalStateException("Cannot restore " + inputFilename + ": " + e.getMessage(), e);
+        }
+        return false;
+    }
+}
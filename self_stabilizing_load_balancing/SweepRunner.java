@@ -0,0 +1,418 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.config.ParsedProperties;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a grid of simulations, each in a JVM of its own (PeerSim keeps its
+ * state in static fields), a bounded number at a time, and collects the
+ * MSEObserver rows of all runs in one CSV file.
+ * <pre>
+ * java self_stabilizing_load_balancing.SweepRunner Configuration/config-testing_ss_ba.txt \
+ *     Configuration/config-testing_ss_ws.txt SIZE=200,1000,10000 random.seed=1..10 DROP=0,0.1 MAXDELAY=0,50
+ * </pre>
+ * Every <code>name=value</code> argument applies to all runs; a value
+ * that lists several values separated by commas, or integer ranges
+ * <code>a..b</code>, makes the parameter an axis of the grid, and the
+ * configuration files are the outermost axis. Options:
+ * <ul>
+ * <li><code>sweep.dir</code>: output directory, default <code>sweep</code></li>
+ * <li><code>sweep.jobs</code>: runs at a time, default the number of cores</li>
+ * <li><code>sweep.engine</code>: <code>peersim</code> (default, runs
+ * <code>peersim.Simulator</code>) or <code>csr</code>
+ * ({@link CsrSimulator})</li>
+ * <li><code>sweep.jvm</code>: options of the forked JVMs, e.g.
+ * <code>"-Xmx4g -XX:+UseParallelGC"</code></li>
+ * </ul>
+ * The first MSEObserver of each run writes CSV without console output,
+ * the other MSEObservers write next to it in <code>runs/</code>, and
+ * TopologyExport and SnapshotExport controls are turned off, so that runs
+ * do not write the same files. The other controls run as configured. <code>results.csv</code> in the output directory gets the rows of
+ * each run as soon as it ends, preceded by the configuration and the
+ * values of the axes. The output of the runs goes to <code>logs/</code>.
+ * <p>
+ * <code>journal.txt</code> holds the arguments of the sweep and lists the
+ * runs that are in <code>results.csv</code>; started again with the same
+ * arguments, the runner skips them, drops rows of a run that was not
+ * finished, and runs the rest. Failed runs are reported and run again on
+ * the next start. Started with other configurations, parameters or
+ * <code>sweep.engine</code>, it refuses to go on; the other options may
+ * change.
+ */
+public class SweepRunner {
+
+    private static final String RESULTS = "results.csv";
+    private static final String JOURNAL = "journal.txt";
+
+    private final List<String> grid = new ArrayList<>(); // the arguments that make the runs, in the journal
+    private final List<String> configs = new ArrayList<>();
+    private final List<String> constants = new ArrayList<>();
+    private final Map<String, List<String>> axes = new LinkedHashMap<>();
+    private final Path dir;
+    private final int jobs;
+    private final String mainClass;
+    private final List<String> jvm = new ArrayList<>();
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+
+    private String header; // of results.csv, without the run columns
+    private long written; // length of results.csv up to the last finished run
+
+    SweepRunner(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                configs.add(arg);
+                grid.add(arg);
+                continue;
+            }
+            String name = arg.substring(0, eq).trim();
+            String value = arg.substring(eq + 1).trim();
+            if (!name.startsWith("sweep.") || name.equals("sweep.engine")) grid.add(name + "=" + value);
+            if (name.startsWith("sweep.")) {
+                options.put(name, value);
+            } else if (value.contains(",") || value.matches("-?\\d+\\.\\.-?\\d+")) {
+                axes.put(name, values(value));
+            } else {
+                constants.add(name + "=" + value);
+            }
+        }
+        if (configs.isEmpty()) throw new IllegalArgumentException("No configuration file given");
+        dir = Paths.get(options.getOrDefault("sweep.dir", "sweep"));
+        jobs = Math.max(1, Integer.parseInt(options.getOrDefault("sweep.jobs",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        String engine = options.getOrDefault("sweep.engine", "peersim");
+        switch (engine) {
+            case "peersim":
+                mainClass = "peersim.Simulator";
+                break;
+            case "csr":
+                mainClass = CsrSimulator.class.getName();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sweep.engine " + engine);
+        }
+        for (String option : options.getOrDefault("sweep.jvm", "").trim().split("\\s+")) {
+            if (!option.isEmpty()) jvm.add(option);
+        }
+    }
+
+    /**
+     * Comma separated values, each a value or an integer range
+     * <code>a..b</code>.
+     */
+    private static List<String> values(String list) {
+        List<String> values = new ArrayList<>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            int dots = item.indexOf("..");
+            if (dots > 0 && item.matches("-?\\d+\\.\\.-?\\d+")) {
+                long from = Long.parseLong(item.substring(0, dots));
+                long to = Long.parseLong(item.substring(dots + 2));
+                for (long v = from; v <= to; v++) values.add(String.valueOf(v));
+            } else if (!item.isEmpty()) {
+                values.add(item);
+            }
+        }
+        return values;
+    }
+
+//--------------------------------------------------------------------------
+// the grid
+//--------------------------------------------------------------------------
+
+    private static final class Run {
+
+        final String id;
+        final String config;
+        final List<String> values; // of the axes
+        final List<String> command = new ArrayList<>();
+        Path csv;
+        Path log;
+        long nanos; // wall time of the JVM
+
+        Run(String id, String config, List<String> values) {
+            this.id = id;
+            this.config = config;
+            this.values = values;
+        }
+    }
+
+    private List<Run> expand() {
+        List<Run> runs = new ArrayList<>();
+        List<String> names = new ArrayList<>(axes.keySet());
+        for (String config : configs) {
+            String base = Paths.get(config).getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            int combinations = 1;
+            for (List<String> v : axes.values()) combinations *= v.size();
+            for (int c = 0; c < combinations; c++) {
+                List<String> values = new ArrayList<>();
+                StringBuilder id = new StringBuilder(base);
+                int rest = c;
+                for (int a = names.size() - 1; a >= 0; a--) { // last axis varies fastest
+                    List<String> v = axes.get(names.get(a));
+                    values.add(0, v.get(rest % v.size()));
+                    rest /= v.size();
+                }
+                for (int a = 0; a < names.size(); a++) id.append('_').append(names.get(a)).append('=').append(values.get(a));
+                Run run = new Run(id.toString().replaceAll("[^A-Za-z0-9._=-]", "_"), config, values);
+                run.csv = dir.resolve("runs").resolve(run.id + ".csv");
+                run.log = dir.resolve("logs").resolve(run.id + ".log");
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * The command line of a run: the configuration, the parameters, then
+     * the first MSEObserver writing to the run's file, the other ones to
+     * files of their own, and the controls that write files off.
+     */
+    private void command(Run run) {
+        List<String> args = new ArrayList<>();
+        args.add(run.config);
+        args.addAll(constants);
+        int a = 0;
+        for (String name : axes.keySet()) args.add(name + "=" + run.values.get(a++));
+        Configuration.setConfig(new ParsedProperties(args.toArray(new String[0])));
+        boolean observer = false;
+        for (String name : Configuration.getNames("control")) {
+            if (!observer && Configuration.getString(name).endsWith("MSEObserver")) {
+                observer = true;
+                args.add(name + ".output_filename=" + run.csv);
+                args.add(name + ".console=false");
+                args.add(name + ".sink=csv");
+            } else if (Configuration.getString(name).endsWith("MSEObserver")) {
+                args.add(name + ".output_filename=" + dir.resolve("runs").resolve(run.id + "." + name + ".csv"));
+            } else if (writesFiles(Configuration.getString(name))) {
+                args.add(name + ".enabled=false");
+            }
+        }
+        if (!observer) throw new IllegalArgumentException(run.config + " has no MSEObserver control");
+        run.command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        run.command.addAll(jvm);
+        run.command.add("-cp");
+        run.command.add(System.getProperty("java.class.path"));
+        run.command.add(mainClass);
+        run.command.addAll(args);
+    }
+
+    /**
+     * Whether a control of class <code>cls</code> writes a file of its own,
+     * which runs side by side would overwrite.
+     */
+    static boolean writesFiles(String cls) {
+        return cls.endsWith("TopologyExport") || cls.endsWith("SnapshotExport");
+    }
+
+//--------------------------------------------------------------------------
+// running
+//--------------------------------------------------------------------------
+
+    void run() throws IOException, InterruptedException {
+        Files.createDirectories(dir.resolve("runs"));
+        Files.createDirectories(dir.resolve("logs"));
+        Set<String> done = resume();
+        List<Run> runs = expand();
+        List<Run> todo = new ArrayList<>();
+        for (Run run : runs) {
+            if (!done.contains(run.id)) {
+                command(run);
+                todo.add(run);
+            }
+        }
+        System.out.printf("[Sweep] %d runs, %d done before, %d to run on %d jobs, output in %s%n",
+                runs.size(), runs.size() - todo.size(), todo.size(), jobs, dir);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> running.forEach(Process::destroyForcibly)));
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        ExecutorCompletionService<Run> finished = new ExecutorCompletionService<>(pool);
+        for (Run run : todo) finished.submit(() -> execute(run));
+        int failed = 0;
+        try {
+            for (int k = 1; k <= todo.size(); k++) {
+                Run run;
+                String status;
+                try {
+                    run = finished.take().get();
+                    status = collect(run);
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.out.printf("[Sweep] %d/%d failed: %s%n", k, todo.size(), e.getCause().getMessage());
+                    continue;
+                }
+                if (status != null) {
+                    failed++;
+                    System.out.printf("[Sweep] %d/%d %s failed: %s, see %s%n", k, todo.size(), run.id, status, run.log);
+                } else {
+                    System.out.printf("[Sweep] %d/%d %s done in %.1f s%n", k, todo.size(), run.id,
+                            run.nanos / 1e9);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        System.out.printf("[Sweep] %d runs in %d s, %d failed%s%n", todo.size(),
+                (System.nanoTime() - start) / 1000000000L, failed,
+                failed > 0 ? "; start the sweep again to retry them" : "");
+    }
+
+    /**
+     * Runs one simulation in a new JVM.
+     *
+     * @return the run, once its JVM has ended
+     */
+    private Run execute(Run run) throws IOException, InterruptedException {
+        Files.deleteIfExists(run.csv);
+        ProcessBuilder builder = new ProcessBuilder(run.command)
+                .redirectErrorStream(true)
+                .redirectOutput(run.log.toFile());
+        long start = System.nanoTime();
+        Process process = builder.start();
+        running.add(process);
+        try {
+            int exit = process.waitFor();
+            run.nanos = System.nanoTime() - start;
+            if (exit != 0) throw new IOException(run.id + " exited with status " + exit + ", see " + run.log);
+        } finally {
+            running.remove(process);
+        }
+        return run;
+    }
+
+    /**
+     * Appends the rows of a finished run to results.csv, then the run to
+     * the journal.
+     *
+     * @return null, or why the rows could not be taken
+     */
+    private String collect(Run run) throws IOException {
+        if (!Files.exists(run.csv)) return "no output " + run.csv;
+        StringBuilder rows = new StringBuilder();
+        try (BufferedReader in = Files.newBufferedReader(run.csv, StandardCharsets.UTF_8)) {
+            String columns = in.readLine();
+            if (columns == null) return "empty output " + run.csv;
+            if (header == null) {
+                header = columns;
+                rows.append(runColumns()).append(columns).append('\n');
+            } else if (!header.equals(columns)) {
+                return "its columns (" + columns + ") differ from those of the other runs (" + header + ")";
+            }
+            StringBuilder prefix = new StringBuilder(Paths.get(run.config).getFileName().toString());
+            for (String v : run.values) prefix.append(',').append(v);
+            prefix.append(',');
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) rows.append(prefix).append(line).append('\n');
+            }
+        }
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        try (FileChannel out = FileChannel.open(dir.resolve(RESULTS), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            out.position(written);
+            out.write(ByteBuffer.wrap(bytes));
+            out.force(false);
+        }
+        written += bytes.length;
+        try (OutputStream journal = Files.newOutputStream(dir.resolve(JOURNAL), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            journal.write((run.id + "\t" + written + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.delete(run.csv);
+        return null;
+    }
+
+    /**
+     * The columns of results.csv before those of MSEObserver.
+     */
+    private String runColumns() {
+        StringBuilder columns = new StringBuilder("config");
+        for (String name : axes.keySet()) columns.append(',').append(name);
+        return columns.append(',').toString();
+    }
+
+    /**
+     * Reads the journal of an earlier start, or starts one with the
+     * arguments, and cuts results.csv after the last run it lists.
+     *
+     * @return the runs done
+     * @throws IOException also if the journal is of other arguments
+     */
+    private Set<String> resume() throws IOException {
+        Set<String> done = new HashSet<>();
+        Path journal = dir.resolve(JOURNAL);
+        Path results = dir.resolve(RESULTS);
+        String arguments = "args\t" + String.join("\t", grid);
+        List<String> lines = Files.exists(journal)
+                ? Files.readAllLines(journal, StandardCharsets.UTF_8) : new ArrayList<>();
+        if (lines.size() > 1 || lines.size() == 1 && !arguments.startsWith(lines.get(0))) {
+            if (!lines.get(0).equals(arguments)) {
+                throw new IOException(journal + " is of a sweep with the arguments \""
+                        + String.join(" ", lines.get(0).split("\t")).replaceFirst("^args ", "")
+                        + "\", start it with those or use another sweep.dir");
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) continue; // cut off while written
+                done.add(line.substring(0, tab));
+                written = Long.parseLong(line.substring(tab + 1));
+            }
+        } else { // none, or cut off while written
+            Files.write(journal, (arguments + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (Files.exists(results)) {
+            if (Files.size(results) < written) {
+                throw new IOException(results + " is shorter than " + journal + " says, remove both to start over");
+            }
+            try (FileChannel out = FileChannel.open(results, StandardOpenOption.WRITE)) {
+                out.truncate(written);
+            }
+            if (written > 0) {
+                try (BufferedReader in = Files.newBufferedReader(results, StandardCharsets.UTF_8)) {
+                    String columns = in.readLine();
+                    if (columns == null || !columns.startsWith(runColumns())) {
+                        throw new IOException(results + " does not start with the columns " + runColumns()
+                                + "..., remove it and " + journal + " to start over");
+                    }
+                    header = columns.substring(runColumns().length());
+                }
+            }
+        }
+        return done;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("Usage: SweepRunner <config file>... [name=value[,value...] ...] [sweep.dir=...]"
+                    + " [sweep.jobs=...] [sweep.engine=peersim|csr] [sweep.jvm=\"...\"]");
+            System.exit(1);
+        }
+        new SweepRunner(args).run();
+    }
+}
@@ -0,0 +1,185 @@
+package self_stabilizing_load_balancing;
+
+import java.util.Arrays;
+
+/**
+ * Merging t-digest (Dunning and Ertl) of a stream of values: a sorted list
+ * of centroids (mean, weight) whose size is bounded by about
+ * <code>compression</code>, with small centroids near both ends, so that
+ * tail quantiles such as p99.9 keep a small relative error. Values are
+ * buffered and merged into the centroids in sorted batches, so adding is
+ * amortized O(log compression).
+ * <p>
+ * Digests of parts of the data can be combined with {@link #merge}.
+ */
+final class TDigest {
+
+    private final double compression;
+    private double[] mean;
+    private double[] weight;
+    private int centroids;
+    private double totalWeight; // of the centroids
+    private double[] nextMean; // merge output, swapped with mean
+    private double[] nextWeight;
+    private final double[] buffer; // values not merged yet
+    private int buffered;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(double compression) {
+        this.compression = Math.max(10, compression);
+        // k1 spans compression / 2 units and two neighbors span more than one
+        int capacity = (int) Math.ceil(this.compression) + 2;
+        mean = new double[capacity];
+        weight = new double[capacity];
+        nextMean = new double[capacity];
+        nextWeight = new double[capacity];
+        buffer = new double[(int) (5 * this.compression)];
+    }
+
+    void add(double x) {
+        if (Double.isNaN(x)) return;
+        if (x < min) min = x;
+        if (x > max) max = x;
+        buffer[buffered++] = x;
+        if (buffered == buffer.length) flush();
+    }
+
+    /**
+     * Adds the values of <code>other</code>, which is left unchanged apart
+     * from its buffer being merged.
+     */
+    void merge(TDigest other) {
+        if (other == this) throw new IllegalArgumentException("Cannot merge a digest with itself");
+        other.flush();
+        flush();
+        if (other.centroids == 0) return;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        merge(other.mean, other.weight, other.centroids);
+    }
+
+    void reset() {
+        centroids = 0;
+        totalWeight = 0;
+        buffered = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    double size() {
+        return totalWeight + buffered;
+    }
+
+    /**
+     * The value below which a fraction <code>q</code> of the values lie,
+     * interpolated between the centroids; NaN if the digest is empty.
+     */
+    double quantile(double q) {
+        flush();
+        if (centroids == 0) return Double.NaN;
+        if (centroids == 1) return mean[0];
+        double index = q * totalWeight;
+        if (index < 1) return min;
+        if (index > totalWeight - 1) return max;
+        int last = centroids - 1;
+        double center = weight[0] / 2; // cumulative weight at the mean of centroid i
+        if (index < center) return interpolate(min, 0, mean[0], center, index);
+        for (int i = 0; i < last; i++) {
+            double next = center + (weight[i] + weight[i + 1]) / 2;
+            if (index < next) {
+                // a single value sits at its mean, not spread around it
+                double left = weight[i] == 1 ? center + 0.5 : center;
+                double right = weight[i + 1] == 1 ? next - 0.5 : next;
+                if (index <= left) return mean[i];
+                if (index >= right) return mean[i + 1];
+                return interpolate(mean[i], left, mean[i + 1], right, index);
+            }
+            center = next;
+        }
+        return interpolate(mean[last], center, max, totalWeight, index);
+    }
+
+    private static double interpolate(double x1, double w1, double x2, double w2, double at) {
+        double x = x1 + (x2 - x1) * (at - w1) / (w2 - w1);
+        return Math.max(Math.min(x1, x2), Math.min(Math.max(x1, x2), x));
+    }
+
+    private void flush() {
+        if (buffered == 0) return;
+        Arrays.sort(buffer, 0, buffered);
+        int n = buffered;
+        buffered = 0;
+        merge(buffer, null, n);
+    }
+
+    /**
+     * Merges the centroids with <code>n</code> more sorted by mean, of
+     * weight 1 if <code>w</code> is null, keeping every new centroid within
+     * one unit of the k1 scale.
+     */
+    private void merge(double[] m, double[] w, int n) {
+        double total = totalWeight;
+        for (int j = 0; j < n; j++) total += w == null ? 1 : w[j];
+        int out = 0;
+        double emitted = 0;
+        double limit = total * q(k(0) + 1);
+        double curMean = 0;
+        double curWeight = 0;
+        for (int i = 0, j = 0; i < centroids || j < n; ) {
+            double x;
+            double wx;
+            if (j == n || (i < centroids && mean[i] <= m[j])) {
+                x = mean[i];
+                wx = weight[i++];
+            } else {
+                x = m[j];
+                wx = w == null ? 1 : w[j];
+                j++;
+            }
+            if (curWeight > 0 && emitted + curWeight + wx <= limit) {
+                curWeight += wx;
+                curMean += wx * (x - curMean) / curWeight;
+                continue;
+            }
+            if (curWeight > 0) {
+                out = emit(out, curMean, curWeight);
+                emitted += curWeight;
+                limit = total * q(k(emitted / total) + 1);
+            }
+            curMean = x;
+            curWeight = wx;
+        }
+        if (curWeight > 0) out = emit(out, curMean, curWeight);
+        double[] t = mean;
+        mean = nextMean;
+        nextMean = t;
+        t = weight;
+        weight = nextWeight;
+        nextWeight = t;
+        centroids = out;
+        totalWeight = total;
+    }
+
+    private int emit(int out, double m, double w) {
+        if (out == nextMean.length) {
+            nextMean = Arrays.copyOf(nextMean, 2 * out);
+            nextWeight = Arrays.copyOf(nextWeight, 2 * out);
+            mean = Arrays.copyOf(mean, 2 * out);
+            weight = Arrays.copyOf(weight, 2 * out);
+        }
+        nextMean[out] = m;
+        nextWeight[out] = w;
+        return out + 1;
+    }
+
+    // k1 scale function and its inverse
+    private double k(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * Math.max(0, Math.min(1, q)) - 1);
+    }
+
+    private double q(double k) {
+        if (k >= compression / 4) return 1;
+        return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+    }
+}
@@ -0,0 +1,202 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.core.CommonState;
+import peersim.core.Control;
+import peersim.core.Linkable;
+import peersim.core.Network;
+import peersim.dynamics.WireGraph;
+import peersim.util.ExtendedRandom;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Initializer that wires the links of a {@link WireGraph} generator, or
+ * reads them from an on-disk cache if the same graph was generated before.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>generator</code>: the WireGraph class, e.g.
+ * <code>peersim.dynamics.WireScaleFreeBA</code> or
+ * <code>peersim.dynamics.WireER</code>; it reads its own parameters
+ * (<code>protocol</code>, <code>undir</code>, <code>pack</code>,
+ * <code>k</code>, ...) from the same prefix</li>
+ * <li><code>cache_dir</code>: default <code>topology-cache</code></li>
+ * </ul>
+ * A graph is identified by the generator class, the parameters of the
+ * prefix, the network size and the state of the random generator when the
+ * initializer runs, which follows from <code>random.seed</code> and the
+ * initializers before it. It is stored as a {@link CsrGraph} file, next to
+ * the state of the random generator after wiring (<code>.rng</code>). On a
+ * hit the file is memory mapped, its links are added to the linkables in
+ * the order the generator added them, and the random generator is set to
+ * its saved state, so the rest of the run is the same as with a generated
+ * graph.
+ * <p>
+ * The cache is only used while the linkables have no links yet.
+ */
+public class TopologyCache implements Control {
+
+    private final String prefix;
+    private final int pid;
+    private final boolean pack;
+    private final String cacheDir;
+    private final WireGraph generator;
+    private Path file; // of the current key, set by lookup
+
+    public TopologyCache(String prefix) {
+        this.prefix = prefix;
+        this.pid = Configuration.getPid(prefix + ".protocol");
+        this.pack = Configuration.contains(prefix + ".pack");
+        this.cacheDir = Configuration.getString(prefix + ".cache_dir", "topology-cache");
+        Class<?> cls = Configuration.getClass(prefix + ".generator");
+        if (!WireGraph.class.isAssignableFrom(cls)) {
+            throw new IllegalArgumentException(cls.getName() + " in " + prefix + ".generator is not a WireGraph");
+        }
+        try {
+            this.generator = (WireGraph) cls.getConstructor(String.class).newInstance(prefix);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot create " + cls.getName() + " for " + prefix + ": " + e, e);
+        }
+    }
+
+    WireGraph generator() {
+        return generator;
+    }
+
+    public boolean execute() {
+        long start = System.nanoTime();
+        for (int i = 0; i < Network.size(); i++) {
+            if (((Linkable) Network.get(i).getProtocol(pid)).degree() > 0) {
+                System.err.println("TopologyCache: the linkable of " + prefix + " has links already, not cached");
+                generator.execute();
+                return false;
+            }
+        }
+        if (lookup()) {
+            try {
+                ExtendedRandom random = Snapshot.deserialize(Files.readAllBytes(randomFile()));
+                long links = wire(MappedFile.map(file.toString()));
+                CommonState.r = random;
+                System.out.printf("[TopologyCache] %d nodes, %d links read from %s in %d ms%n", Network.size(),
+                        links, file, (System.nanoTime() - start) / 1000000);
+                return false;
+            } catch (IOException e) {
+                System.err.println("TopologyCache: cannot read " + file + ", generating the graph: " + e.getMessage());
+            }
+        }
+        generator.execute();
+        store(CsrGraph.fromNetwork(pid), start);
+        return false;
+    }
+
+    /**
+     * Adds the links of a mapped CSR file to the linkables.
+     *
+     * @return the number of links
+     */
+    private long wire(MappedFile csr) throws IOException {
+        int n = Network.size();
+        long offsets = CsrGraph.HEADER + 8L * n;
+        long neighbors = offsets + 4L * (n + 1);
+        if (csr.size < CsrGraph.HEADER || csr.getInt(0) != CsrGraph.MAGIC || csr.getInt(4) != CsrGraph.VERSION
+                || csr.getInt(8) != n || csr.size != neighbors + 4 * csr.getLong(16)) {
+            throw new IOException("not a CSR graph file of " + n + " nodes");
+        }
+        for (int i = 0; i < n; i++) {
+            Linkable linkable = (Linkable) Network.get(i).getProtocol(pid);
+            int end = csr.getInt(offsets + 4L * (i + 1));
+            for (int k = csr.getInt(offsets + 4L * i); k < end; k++) {
+                linkable.addNeighbor(Network.get(csr.getInt(neighbors + 4L * k)));
+            }
+        }
+        if (pack) {
+            for (int i = 0; i < n; i++) ((Linkable) Network.get(i).getProtocol(pid)).pack();
+        }
+        return csr.getLong(16);
+    }
+
+    /**
+     * The cached links, setting the random generator to its state after
+     * they were generated, or null if they are not cached; then generate
+     * them with {@link #generator()} and {@link #store} them
+     * ({@link CsrSimulator}).
+     */
+    CsrGraph cached() {
+        long start = System.nanoTime();
+        if (!lookup()) return null;
+        try {
+            ExtendedRandom random = Snapshot.deserialize(Files.readAllBytes(randomFile()));
+            CsrGraph graph = CsrGraph.read(file.toString());
+            CommonState.r = random;
+            System.out.printf("[TopologyCache] %d nodes, %d links read from %s in %d ms%n", graph.size(),
+                    graph.edges(), file, (System.nanoTime() - start) / 1000000);
+            return graph;
+        } catch (IOException e) {
+            System.err.println("TopologyCache: cannot read " + file + ", generating the graph: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores links just generated under the key of the last lookup, with
+     * the current state of the random generator.
+     */
+    void store(CsrGraph graph, long start) {
+        long generated = System.nanoTime();
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            // runs of a sweep may store the same graph at once, each through its own file
+            Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            Files.write(tmp, Snapshot.serialize(CommonState.r));
+            Files.move(tmp, randomFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            graph.write(tmp.toString());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.printf("[TopologyCache] %d nodes, %d links generated in %d ms, stored as %s%n", graph.size(),
+                    graph.edges(), (generated - start) / 1000000, file);
+        } catch (IOException e) {
+            System.err.println("TopologyCache: cannot store " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the file of the current key.
+     *
+     * @return true if it is cached
+     */
+    private boolean lookup() {
+        int n = Configuration.getInt("network.size");
+        StringBuilder key = new StringBuilder(generator.getClass().getName()).append('\n');
+        for (String name : Configuration.getNames(prefix)) {
+            if (name.equals(prefix + ".cache_dir")) continue;
+            key.append(name.substring(prefix.length())).append('=').append(Configuration.getString(name, ""))
+                    .append('\n');
+        }
+        key.append("network.size=").append(n).append('\n');
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(key.toString().getBytes(StandardCharsets.UTF_8));
+            sha.update(Snapshot.serialize(CommonState.r));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha.digest()) hex.append(String.format("%02x", b));
+            file = Paths.get(cacheDir, generator.getClass().getSimpleName() + "-" + n + "-"
+                    + hex.substring(0, 24) + ".csr");
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Cannot compute the cache key of " + prefix, e);
+        }
+        return Files.exists(file) && Files.exists(randomFile());
+    }
+
+    private Path randomFile() {
+        return file.resolveSibling(file.getFileName() + ".rng");
+    }
+}
@@ -0,0 +1,117 @@
+package self_stabilizing_load_balancing;
+
+import peersim.config.Configuration;
+import peersim.core.Control;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the links of a linkable protocol to a file, instead of printing
+ * them as PrintLinkableControl does.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>linkable</code>: the protocol holding the links</li>
+ * <li><code>format</code>: <code>csr</code> (default) for the binary
+ * {@link CsrGraph} file, or <code>edgelist</code> for one
+ * <code>"id id"</code> line per directed link, with the node count on a
+ * leading <code>#</code> line</li>
+ * <li><code>gzip</code>: compress the edge list, default true</li>
+ * <li><code>output_filename</code>: default <code>topology.csr</code>, or
+ * <code>topology.txt.gz</code> for a compressed edge list</li>
+ * <li><code>enabled</code>: false writes nothing, whatever the schedule of
+ * the control; default true</li>
+ * </ul>
+ */
+public class TopologyExport implements Control {
+
+    private final int pid;
+    private final String format;
+    private final boolean gzip;
+    private final String outputFilename;
+    private final boolean enabled;
+
+    public TopologyExport(String prefix) {
+        this.pid = Configuration.getPid(prefix + ".linkable");
+        this.format = Configuration.getString(prefix + ".format", "csr");
+        this.gzip = Configuration.getBoolean(prefix + ".gzip", true);
+        if (!format.equals("csr") && !format.equals("edgelist")) {
+            throw new IllegalArgumentException("Unknown format " + format + " in " + prefix);
+        }
+        String defaultName = format.equals("csr") ? "topology.csr" : gzip ? "topology.txt.gz" : "topology.txt";
+        this.outputFilename = Configuration.getString(prefix + ".output_filename", defaultName);
+        this.enabled = Configuration.getBoolean(prefix + ".enabled", true);
+    }
+
+    public boolean execute() {
+        if (enabled) export(CsrGraph.fromNetwork(pid));
+        return false;
+    }
+
+    /**
+     * Writes <code>graph</code> instead of the links in the network
+     * ({@link CsrSimulator}).
+     */
+    void export(CsrGraph graph) {
+        if (!enabled) return;
+        long start = System.nanoTime();
+        try {
+            if (format.equals("csr")) {
+                graph.write(outputFilename);
+            } else {
+                writeEdgeList(graph);
+            }
+            System.out.printf("[Topology] %d nodes, %d links written to %s in %d ms%n", graph.size(),
+                    graph.edges(), outputFilename, (System.nanoTime() - start) / 1000000);
+        } catch (IOException e) {
+            System.err.println("Error writing topology: " + e.getMessage());
+        }
+    }
+
+    private void writeEdgeList(CsrGraph graph) throws IOException {
+        OutputStream file = new FileOutputStream(outputFilename);
+        if (gzip) {
+            // the default level spends most of the export time compressing
+            file = new GZIPOutputStream(file, 1 << 16) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+        try (OutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            byte[] line = new byte[64];
+            byte[] header = ("# " + graph.size() + " nodes\n").getBytes(StandardCharsets.US_ASCII);
+            out.write(header);
+            for (int i = 0; i < graph.size(); i++) {
+                for (int k = 0; k < graph.degree(i); k++) {
+                    int len = putLong(line, 0, graph.id(i));
+                    line[len++] = ' ';
+                    len = putLong(line, len, graph.id(graph.neighbor(i, k)));
+                    line[len++] = '\n';
+                    out.write(line, 0, len);
+                }
+            }
+        }
+    }
+
+    private static int putLong(byte[] buf, int pos, long v) {
+        if (v < 0) {
+            String s = Long.toString(v);
+            for (int k = 0; k < s.length(); k++) buf[pos++] = (byte) s.charAt(k);
+            return pos;
+        }
+        int end = pos + 1;
+        for (long rest = v / 10; rest > 0; rest /= 10) end++;
+        for (int p = end - 1; p >= pos; p--) {
+            buf[p] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return end;
+    }
+}
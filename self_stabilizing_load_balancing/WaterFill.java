@@ -0,0 +1,110 @@
+package self_stabilizing_load_balancing;
+
+import java.util.Arrays;
+
+/**
+ * The allocation of {@link SelfED}'s RRProposal (l36-l43) on arrays.
+ * <p>
+ * The caller fills {@link #tLoad} with the tentative loads of PV_less in
+ * list order. {@link #allocate} leaves the proposal of each receiver in
+ * {@link #amount} (0 for none) and, like the round-robin it replaces, adds
+ * the units handed out in l42-43 to {@link #tLoad}.
+ * <p>
+ * Instead of handing out one unit per receiver and round, the round-robin
+ * part sorts the receivers' capacities and computes the water level and the
+ * remainder split directly, in O(d log d) regardless of the amount of load.
+ * <code>WaterFillCheck</code> in <code>benchmarks/</code> compares it with
+ * the unit-step loop on random inputs.
+ */
+public final class WaterFill {
+
+    double[] tLoad = new double[0];
+    int[] amount = new int[0];
+    /** Whether l41.a ran, i.e. the proposals were put rather than merged. */
+    boolean put;
+    /** Units handed out by the round-robin, one merge call each. */
+    int rrUnits;
+    /**
+     * Iterations the unit-step loop took: one per receiver of a full round
+     * and one per unit. Counted as RRUnits by {@link SelfCounters}.
+     */
+    int unitSteps;
+
+    private int[] caps = new int[0];
+    private int[] sorted = new int[0];
+
+    WaterFill ensure(int n) {
+        if (tLoad.length < n) {
+            tLoad = new double[n];
+            amount = new int[n];
+            caps = new int[n];
+            sorted = new int[n];
+        }
+        return this;
+    }
+
+    /**
+     * Same result as the unit-step loop of l36-l43.
+     */
+    void allocate(int n, double tentativeLoad, int loadToTransfer) {
+        put = false;
+        rrUnits = 0;
+        unitSteps = 0;
+        Arrays.fill(amount, 0, n, 0);
+        if (n == 0 || loadToTransfer <= 0) return;
+
+        // l39
+        double m = tLoad[0];
+        for (int k = 1; k < n; k++) {
+            if (tLoad[k] > m) m = tLoad[k];
+        }
+        int transferPerNode = (int) (tentativeLoad - m);
+        if (transferPerNode <= 0) return;
+
+        // l40-l41: repeated while a full round fits; nobody reaches the
+        // tentative load there (m < tentativeLoad), so nobody is removed
+        int leftLoad = loadToTransfer;
+        int round = transferPerNode * n;
+        if (round <= leftLoad) {
+            put = true;
+            Arrays.fill(amount, 0, n, transferPerNode);
+            unitSteps = leftLoad / round * n;
+            leftLoad %= round;
+            if (leftLoad == 0) return;
+        }
+
+        // l42-43: one unit per receiver and round until it reaches the
+        // tentative load; find the level all receivers are filled up to
+        for (int k = 0; k < n; k++) {
+            caps[k] = (int) (tentativeLoad - tLoad[k]);
+        }
+        System.arraycopy(caps, 0, sorted, 0, n);
+        Arrays.sort(sorted, 0, n);
+        long used = 0;
+        int level = 0;
+        int i = 0;
+        for (; i < n; i++) {
+            long cost = (long) (sorted[i] - level) * (n - i);
+            if (used + cost > leftLoad) break;
+            used += cost;
+            level = sorted[i];
+        }
+        // the last, partial round goes to the first receivers in list order
+        long rest = 0;
+        if (i < n) {
+            level += (int) ((leftLoad - used) / (n - i));
+            rest = (leftLoad - used) % (n - i);
+        }
+        for (int k = 0; k < n; k++) {
+            int units = Math.min(caps[k], level);
+            if (rest > 0 && caps[k] > level) {
+                units++;
+                rest--;
+            }
+            amount[k] += units;
+            tLoad[k] += units;
+            rrUnits += units;
+        }
+        unitSteps += rrUnits;
+    }
+}
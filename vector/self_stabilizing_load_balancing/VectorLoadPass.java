@@ -0,0 +1,129 @@
+package self_stabilizing_load_balancing;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Random;
+
+/**
+ * The sums, min and max of a full pass of {@link LoadMetrics} over loads in
+ * an array, in SIMD lanes of the incubating Vector API. This source folder
+ * is compiled only with <code>--add-modules jdk.incubator.vector</code>, and
+ * LoadMetrics loads the class by name when the JVM runs with that option;
+ * otherwise it stays with its scalar loop. Min and max are the same as
+ * those of the scalar loop; the sums are added in another order, so the MSE
+ * and the mean may differ in the last bits.
+ * <p>
+ * The discrepancy stays a scalar loop over the links in LoadMetrics: it
+ * reads the neighbors' loads at random, which costs far more than the
+ * arithmetic, and gathering them into lanes by index was slower than the
+ * scalar loop (and crashed the JIT with 512-bit vectors on JDK 21.0.1).
+ * <pre>
+ * java --add-modules jdk.incubator.vector self_stabilizing_load_balancing.VectorLoadPass [nodes [degree [seed]]]
+ * </pre>
+ * checks the pass of LoadMetrics with it against the scalar one on a random
+ * graph and prints the time of both.
+ */
+final class VectorLoadPass extends LoadMetrics.ArrayPass {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    void pass(double[] values, int n, double shift) {
+        int lanes = SPECIES.length();
+        DoubleVector shifts = DoubleVector.broadcast(SPECIES, shift);
+        DoubleVector s = DoubleVector.zero(SPECIES);
+        DoubleVector sq = DoubleVector.zero(SPECIES);
+        DoubleVector lo = DoubleVector.broadcast(SPECIES, Double.MAX_VALUE);
+        DoubleVector hi = DoubleVector.broadcast(SPECIES, -Double.MAX_VALUE);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += lanes) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, values, i);
+            s = s.add(v);
+            DoubleVector d = v.sub(shifts);
+            sq = sq.add(d.mul(d));
+            lo = lo.min(v);
+            hi = hi.max(v);
+        }
+        double ss = s.reduceLanes(VectorOperators.ADD);
+        double ssq = sq.reduceLanes(VectorOperators.ADD);
+        double sLo = lo.reduceLanes(VectorOperators.MIN);
+        double sHi = hi.reduceLanes(VectorOperators.MAX);
+        for (; i < n; i++) {
+            double v = values[i];
+            ss += v;
+            double d = v - shift;
+            ssq += d * d;
+            if (v < sLo) sLo = v;
+            if (v > sHi) sHi = v;
+        }
+        sum = ss;
+        sumSq = ssq;
+        min = sLo;
+        max = sHi;
+    }
+
+    /**
+     * Compares the vector pass with the scalar one of LoadMetrics over a few
+     * observations of a random graph with random loads, and times both.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int degree = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random r = new Random(args.length > 2 ? Long.parseLong(args[2]) : 1234567890L);
+        int[] offset = new int[n + 1];
+        for (int i = 0; i < n; i++) offset[i + 1] = offset[i] + r.nextInt(2 * degree + 1);
+        int[] neighbor = new int[offset[n]];
+        for (int k = 0; k < neighbor.length; k++) neighbor[k] = r.nextInt(n);
+        CsrGraph graph = new CsrGraph(new long[n], offset, neighbor);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) values[i] = r.nextInt(2000) + (r.nextInt(4) == 0 ? r.nextDouble() : 0);
+        System.out.printf("%d nodes, %d links, %d lanes%n", n, neighbor.length, SPECIES.length());
+
+        LoadMetrics scalar = new LoadMetrics(0, false, 1, false);
+        LoadMetrics vector = new LoadMetrics(0, false, 1, true);
+        double worst = 0;
+        long scalarNanos = 0, vectorNanos = 0;
+        int observations = 20;
+        int warmUp = 5; // not timed
+        for (int o = 0; o < observations; o++) {
+            long start = System.nanoTime();
+            scalar.observe(values, graph);
+            long middle = System.nanoTime();
+            vector.observe(values, graph);
+            if (o >= warmUp) {
+                scalarNanos += middle - start;
+                vectorNanos += System.nanoTime() - middle;
+            }
+            if (scalar.min != vector.min || scalar.max != vector.max || scalar.discrepancy != vector.discrepancy) {
+                System.err.printf("Mismatch in observation %d: min %s/%s, max %s/%s, discrepancy %s/%s%n", o,
+                        scalar.min, vector.min, scalar.max, vector.max, scalar.discrepancy, vector.discrepancy);
+                System.exit(1);
+            }
+            worst = Math.max(worst, relative(scalar.mse, vector.mse));
+            worst = Math.max(worst, relative(scalar.avg, vector.avg));
+            // move load between random neighbors, as the protocol does
+            for (int c = 0; c < n / 10; c++) {
+                int i = r.nextInt(n);
+                if (offset[i + 1] == offset[i]) continue;
+                int j = neighbor[offset[i] + r.nextInt(offset[i + 1] - offset[i])];
+                int deal = (int) Math.max(0, (values[i] - values[j]) / 2);
+                values[i] -= deal;
+                values[j] += deal;
+            }
+        }
+        if (worst > 1e-9) {
+            System.err.printf("MSE or mean differ by %.3e relative%n", worst);
+            System.exit(1);
+        }
+        System.out.printf("%d observations: min, max and discrepancy identical, MSE and mean within %.3e relative%n",
+                observations, worst);
+        System.out.printf("scalar %.2f ms, vector %.2f ms per observation%n",
+                scalarNanos / 1e6 / (observations - warmUp), vectorNanos / 1e6 / (observations - warmUp));
+    }
+
+    private static double relative(double a, double b) {
+        return a == b ? 0 : Math.abs(a - b) / Math.max(Math.abs(a), Math.abs(b));
+    }
+}